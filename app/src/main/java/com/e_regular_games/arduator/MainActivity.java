@@ -24,17 +24,25 @@ import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.e_regular_games.arduator.arduino.AndroidUpdaters;
 import com.e_regular_games.arduator.arduino.ArduinoComm;
 import com.e_regular_games.arduator.arduino.ArduinoCommBle;
 import com.e_regular_games.arduator.arduino.ArduinoCommBt;
 import com.e_regular_games.arduator.arduino.ArduinoCommManager;
 import com.e_regular_games.arduator.arduino.ArduinoCommManagerAny;
 import com.e_regular_games.arduator.arduino.ArduinoCommUpdater;
+import com.e_regular_games.arduator.arduino.Firmware;
+import com.e_regular_games.arduator.arduino.FirmwareCache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -53,6 +61,11 @@ public class MainActivity extends AppCompatActivity {
     private Uri uriFirmware;
     private BluetoothDevice device;
     private ArduinoCommUpdater updater;
+    // kept across activities and saved to the cache directory, the same file is parsed only once.
+    private static FirmwareCache firmwareCache;
+    private static final Executor firmwareLoader = Executors.newSingleThreadExecutor();
+    // the file being uploaded when it was not cached, it is cached once the upload completes.
+    private byte[] firmwareToCache;
     private boolean bSearching = false, bError = false;
 
     private void updateButtons() {
@@ -152,52 +165,125 @@ public class MainActivity extends AppCompatActivity {
         }
 
         public void onCreate(ArduinoComm arduino) {
-            try {
-                InputStream in = MainActivity.this.getContentResolver().openInputStream(uriFirmware);
-                if (spnMode.getSelectedItem().toString().equals("2.0")) {
-                    ((ArduinoCommBt)arduino).setPinCode(editPin.getText().toString());
-                } else {
-                    ((ArduinoCommBle)arduino).setServiceId(editService.getText().toString());
-                }
+            if (spnMode.getSelectedItem().toString().equals("2.0")) {
+                ((ArduinoCommBt)arduino).setPinCode(editPin.getText().toString());
+            } else {
+                ((ArduinoCommBle)arduino).setServiceId(editService.getText().toString());
+            }
 
-                updater = new ArduinoCommUpdater(MainActivity.this, arduino);
-                updater.setOnStatus(new ArduinoCommUpdater.OnStatus() {
-                    @Override
-                    public void onError(ArduinoCommUpdater.ErrorCode code) {
+            final ArduinoCommUpdater upload = AndroidUpdaters.newUpdater(MainActivity.this, arduino);
+            final String key = uriFirmware.toString();
+            updater = upload;
+            firmwareToCache = null;
+            updater.setOnStatus(new ArduinoCommUpdater.OnStatus() {
+                @Override
+                public void onError(ArduinoCommUpdater.ErrorCode code) {
+                    Firmware firmware = upload.getFirmware();
+                    if (firmware != null && firmware.getError() != null) {
+                        showError(code.toString() + " on line " + firmware.getErrorLine());
+                    } else {
                         showError(code.toString());
+                    }
+                    updater = null;
+                    bError = true;
+                    updateButtons();
+                }
+
+                @Override
+                public void onStatus(ArduinoCommUpdater.StatusCode progress) {
+                    if (bError) {
+                        return;
+                    }
+
+                    if (progress == ArduinoCommUpdater.StatusCode.Disconnected) {
+                        showError("Disconnected");
+                        updater = null;
+                        updateButtons();
+                    } else if (progress == ArduinoCommUpdater.StatusCode.Complete) {
+                        if (firmwareToCache != null) {
+                            cacheFirmware(key, firmwareToCache, upload.getFirmware());
+                            firmwareToCache = null;
+                        }
+                        showStatus("Upload Complete!");
+                        prgBusy.setVisibility(View.GONE);
                         updater = null;
-                        bError = true;
                         updateButtons();
+                    } else {
+                        showStatus(progress.toString());
+                    }
+                }
+            });
+
+            // the file is read and hashed off the UI thread. A cached image is uploaded as it is,
+            // otherwise the file is parsed by the upload while the device connects.
+            final Uri uri = uriFirmware;
+            firmwareLoader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] file = null;
+                    Firmware cached = null;
+                    try {
+                        file = readFile(uri);
+                        cached = firmwareCache.get(key, file);
+                    } catch (IOException e) {
+                        // reported below.
                     }
 
-                    @Override
-                    public void onStatus(ArduinoCommUpdater.StatusCode progress) {
-                        if (bError) {
-                            return;
+                    final byte[] read = file;
+                    final Firmware firmware = cached;
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (updater != upload) {
+                                return;
+                            } else if (read == null) {
+                                showError("Error reading firmware.");
+                                updater = null;
+                                updateButtons();
+                            } else if (firmware != null) {
+                                upload.upload(firmware);
+                            } else {
+                                firmwareToCache = read;
+                                upload.upload(new ByteArrayInputStream(read));
+                            }
                         }
+                    });
+                }
+            });
+        }
+    };
 
-                        if (progress == ArduinoCommUpdater.StatusCode.Disconnected) {
-                            showError("Disconnected");
-                            updater = null;
-                            updateButtons();
-                        } else if (progress == ArduinoCommUpdater.StatusCode.Complete) {
-                            showStatus("Upload Complete!");
-                            prgBusy.setVisibility(View.GONE);
-                            updater = null;
-                            updateButtons();
-                        } else {
-                            showStatus(progress.toString());
-                        }
-                    }
-                });
+    /**
+     * Cache firmware which was parsed while it was uploaded, so the next upload of the file skips
+     * parsing. The cache saves it to disk, which is done off the UI thread.
+     */
+    private static void cacheFirmware(final String key, final byte[] file, final Firmware firmware) {
+        firmwareLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                firmwareCache.put(key, file, firmware);
+            }
+        });
+    }
 
-                updater.upload(in);
-            } catch (IOException e) {
-                showError("Error reading firmware.");
-                updater = null;
+    private byte[] readFile(Uri uri) throws IOException {
+        InputStream in = getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("No content at " + uri);
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[0x1000];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                out.write(chunk, 0, read);
             }
+            return out.toByteArray();
+        } finally {
+            in.close();
         }
-    };
+    }
 
     private void showError(String err) {
         layoutStatus.setVisibility(View.VISIBLE);
@@ -266,6 +352,9 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         config = new ActivityConfig(this);
+        if (firmwareCache == null) {
+            firmwareCache = new FirmwareCache(0x100000, new File(getCacheDir(), "firmware"));
+        }
 
         layoutStatus = (LinearLayout) findViewById(R.id.layout_status);
         textStatus = (TextView) findViewById(R.id.bt_text_status);
@@ -0,0 +1,22 @@
+package com.e_regular_games.arduator.arduino;
+
+import android.app.Activity;
+
+import java.util.concurrent.Executor;
+
+/**
+ * @author S. Ryan Edgar
+ * Runs tasks on the UI thread of an Activity, running them immediately when already on it.
+ */
+public class ActivityExecutor implements Executor {
+    public ActivityExecutor(Activity app) {
+        this.app = app;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        app.runOnUiThread(task);
+    }
+
+    private final Activity app;
+}
@@ -0,0 +1,32 @@
+package com.e_regular_games.arduator.arduino;
+
+import android.app.Activity;
+
+/**
+ * @author S. Ryan Edgar
+ * Creates updaters for an Android application. Each upload runs on the shared I/O thread, see
+ * HandlerEventLoop.io, and reports to the UI thread of the Activity. ArduinoCommUpdater and
+ * BatchUpdater only take an EventLoop and an Executor, so they run anywhere.
+ */
+public final class AndroidUpdaters {
+    private AndroidUpdaters() {}
+
+    /**
+     * Only OnStatus is called on the UI thread of app. The device delivers its events to the I/O
+     * thread from now on.
+     */
+    public static ArduinoCommUpdater newUpdater(Activity app, ArduinoComm device) {
+        EventLoop io = HandlerEventLoop.io();
+        device.setEventExecutor(io);
+        return new ArduinoCommUpdater(device, io, new ActivityExecutor(app));
+    }
+
+    /**
+     * BatchEvent is called on the UI thread of app.
+     * @param firmware must already be loaded.
+     * @param parallelism the most uploads to run at once.
+     */
+    public static BatchUpdater newBatchUpdater(Activity app, Firmware firmware, int parallelism) {
+        return new BatchUpdater(firmware, parallelism, HandlerEventLoop.io(), new ActivityExecutor(app));
+    }
+}
@@ -1,11 +1,8 @@
 package com.e_regular_games.arduator.arduino;
 
-import android.app.Activity;
-import android.bluetooth.BluetoothDevice;
-
-import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * @author S. Ryan Edgar
@@ -16,24 +13,45 @@ import java.util.ArrayList;
  *
  * Although any bluetooth devide implementing the serial port protocal will work, it need not only
  * be Arduino.
+ *
+ * Nothing here depends on Android, the links reached through Android Bluetooth extend
+ * ArduinoCommBluetooth.
  */
 public abstract class ArduinoComm {
     public enum ErrorCode {Connect, IO, Send, Receive, Services, RemovePairing, PinRequired, ServiceIdRequired}
     public enum StatusCode {Connecting, Connected, Disconnected, Disconnecting}
 
-    public ArduinoComm(Activity parent, BluetoothDevice device) {
-        app = parent;
-        this.device = device;
+    /**
+     * @param events where EventHandlers are called, the EventLoop of an ArduinoCommUpdater which
+     *               uses this device. See ArduinoCommBluetooth for devices reached through Android.
+     */
+    protected ArduinoComm(Executor events) {
+        this.events = events;
     }
 
     public static class EventHandler {
         public void onError(ArduinoComm self, ErrorCode code) {}
         public void onStatus(ArduinoComm self, StatusCode code) {}
+        /**
+         * @param content the received bytes, which may be reused once this returns.
+         */
         public void onContent(ArduinoComm self, int length, byte[] content) {}
     }
 
-    public String getName() {
-        return device.getName() != null ? device.getName() : device.getAddress();
+    public abstract String getName();
+
+    /**
+     * @return the hardware address of the device, which unlike the name is unique.
+     */
+    public abstract String getAddress();
+
+    /**
+     * @param events where EventHandlers are called and where the device handles its own Bluetooth
+     *               callbacks, send must be called from it too. The UI thread by default for
+     *               ArduinoCommBluetooth.
+     */
+    public void setEventExecutor(Executor events) {
+        this.events = events;
     }
 
     public void addEventHandler(EventHandler handler) {
@@ -49,18 +67,43 @@ public abstract class ArduinoComm {
     public abstract void connect();
     public abstract void disconnect();
 
+    /**
+     * Ask the link to favour throughput over power, for the duration of an upload. Only
+     * Bluetooth Low-Energy links can be adjusted, others ignore it.
+     * @param high true to request the shortest connection interval, false to return to balanced.
+     */
+    public void setHighThroughput(boolean high) {
+    }
+
+    /**
+     * @return the connection interval of the link in microseconds, -1 if it is unknown.
+     */
+    public int getConnectionInterval() {
+        return -1;
+    }
+
     /**
      * @param packet data packet, only the lowest 8 bits of each integer will be sent. Integers are
      *               used to avoid issues with negative numbers.
      */
-    public abstract void send(int[] packet);
+    public void send(int[] packet) {
+        byte[] bytes = new byte[packet.length];
+        for (int i = 0; i < packet.length; i += 1) {
+            bytes[i] = (byte) packet[i];
+        }
+        send(bytes);
+    }
+
+    /**
+     * @param packet data packet, which is handed over and must not be changed by the caller.
+     */
+    public abstract void send(byte[] packet);
 
-    protected Activity app;
-    protected BluetoothDevice device;
+    protected Executor events;
     private ArrayList<EventHandler> onEvents = new ArrayList<>();
 
     protected void onStatus(final ArduinoComm.StatusCode stat) {
-        app.runOnUiThread(new Runnable() {
+        events.execute(new Runnable() {
             @Override
             public void run() {
                 for (EventHandler e : onEvents) {
@@ -71,7 +114,7 @@ public abstract class ArduinoComm {
     }
 
     protected void onError(final ArduinoComm.ErrorCode err) {
-        app.runOnUiThread(new Runnable() {
+        events.execute(new Runnable() {
             @Override
             public void run() {
                 for (EventHandler e : onEvents) {
@@ -81,25 +124,25 @@ public abstract class ArduinoComm {
         });
     }
 
+    /**
+     * @param content no longer used by the caller, it is handed over to the EventHandlers.
+     */
     protected void onContent(final int length, final byte[] content) {
-        app.runOnUiThread(new Runnable() {
+        events.execute(new Runnable() {
             @Override
             public void run() {
-                for (EventHandler e : onEvents) {
-                    e.onContent(ArduinoComm.this, length, content);
-                }
+                dispatchContent(length, content);
             }
         });
     }
 
-    // https://stackoverflow.com/questions/38055699/programmatically-pairing-with-a-ble-device-on-android-4-4
-    protected void deleteBondInformation() {
-        try {
-            // FFS Google, just unhide the method.
-            Method m = device.getClass().getMethod("removeBond", (Class[]) null);
-            m.invoke(device, (Object[]) null);
-        } catch (Exception e) {
-
+    /**
+     * Call the EventHandlers now, which the caller must do on the event executor. Content may be
+     * reused as soon as this returns.
+     */
+    protected void dispatchContent(int length, byte[] content) {
+        for (EventHandler e : onEvents) {
+            e.onContent(ArduinoComm.this, length, content);
         }
     }
 }
@@ -8,10 +8,8 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
-import android.os.Handler;
-import android.os.Message;
+import android.os.Build;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
@@ -23,7 +21,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * Communicate with a Bluetooth 4.0 Low-Energy device. You must set the service id before
  * attempting to connect to the device.
  */
-public class ArduinoCommBle extends ArduinoComm {
+public class ArduinoCommBle extends ArduinoCommBluetooth {
     
     public ArduinoCommBle(Activity app, BluetoothDevice device) {
         super(app, device);
@@ -51,6 +49,11 @@ public class ArduinoCommBle extends ArduinoComm {
                 }
             }
 
+            chunkLen = DEFAULT_CHUNK_LEN;
+            connectionInterval = -1;
+            mtuRequested = false;
+            connectReported = false;
+            toSend.clear();
             btGatt = device.connectGatt(app, false, btgCallback);
             onStatus(StatusCode.Connecting);
 
@@ -70,7 +73,6 @@ public class ArduinoCommBle extends ArduinoComm {
     public void disconnect() {
         if (connected) {
             taskConnectTimeout.cancel();
-            pendingWrite = false;
             toSend.clear();
             onStatus(StatusCode.Disconnecting);
             btGatt.disconnect();
@@ -78,53 +80,46 @@ public class ArduinoCommBle extends ArduinoComm {
     }
 
     @Override
-    public void send(int packet[]) {
-        for (int i = 0; i < packet.length; i += 1) {
-            toSend.add(packet[i]);
+    public void setHighThroughput(boolean high) {
+        if (btGatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            btGatt.requestConnectionPriority(high ? BluetoothGatt.CONNECTION_PRIORITY_HIGH : BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
         }
+    }
 
-        if (!pendingWrite) {
-            pendingWrite = true;
+    /**
+     * @return the connection interval last reported by Android, which it does from API 26, or -1.
+     */
+    @Override
+    public int getConnectionInterval() {
+        return connectionInterval;
+    }
+
+    @Override
+    public void send(byte[] packet) {
+        if (toSend.add(packet)) {
             sendNextChunk();
         }
     }
 
     private BluetoothGatt btGatt;
-    private ArrayList<Integer> toSend = new ArrayList<>();
-    private boolean pendingWrite = false;
+    // packets waiting to be written, only used where send is called.
+    private ChunkQueue toSend = new ChunkQueue();
+    private volatile int chunkLen = DEFAULT_CHUNK_LEN;
+    // Connected is reported once per connection, the MTU may change again after it.
+    private volatile boolean mtuRequested = false, connectReported = false;
+    private volatile int connectionInterval = -1;
 
-    private Handler messenger = new Handler(new Handler.Callback() {
-        @Override
-        public boolean handleMessage(Message message) {
-            switch (message.what) {
-                case MessageConstants.ERROR:
-                    onError((ErrorCode) message.obj);
-                    break;
-
-                case MessageConstants.STATUS:
-                    onStatus((StatusCode) message.obj);
-                    break;
-
-                case MessageConstants.ACTION:
-                    doAction((ActionCode) message.obj);
-                    break;
-
-                case MessageConstants.READ:
-                    byte[] content = (byte[]) message.obj;
-                    onContent(content.length, content);
-                    break;
-            }
+    private static final int DEFAULT_CHUNK_LEN = 20; // the default ATT MTU of 23, less 3 byte header.
+    private static final int REQUESTED_MTU = 247; // the largest which fits a BLE 4.2 data packet.
+    private static final int ATT_HEADER_LEN = 3;
 
-            return false;
-        }
-    });
-    private BluetoothGattCallback btgCallback = new ArduinoGattCallback(messenger);
+    private BluetoothGattCallback btgCallback = new ArduinoGattCallback();
 
-    private enum ActionCode {InitSerialService, WriteNext}
+    private enum ActionCode {InitSerialService, WriteNext, LinkLost}
 
     private String serviceId;
     private BluetoothGattCharacteristic charSerial;
-    private boolean connected = false;
+    private volatile boolean connected = false;
 
     private Timer timer = new Timer();
     private TimerTask taskConnectTimeout;
@@ -136,6 +131,35 @@ public class ArduinoCommBle extends ArduinoComm {
         int ACTION = 8;
     }
 
+    /**
+     * Gatt callbacks arrive on a binder thread, handle them where send is called.
+     */
+    private void dispatch(final int what, final Object obj) {
+        events.execute(new Runnable() {
+            @Override
+            public void run() {
+                switch (what) {
+                    case MessageConstants.ERROR:
+                        onError((ErrorCode) obj);
+                        break;
+
+                    case MessageConstants.STATUS:
+                        onStatus((StatusCode) obj);
+                        break;
+
+                    case MessageConstants.ACTION:
+                        doAction((ActionCode) obj);
+                        break;
+
+                    case MessageConstants.READ:
+                        byte[] content = (byte[]) obj;
+                        onContent(content.length, content);
+                        break;
+                }
+            }
+        });
+    }
+
     private void doAction(ActionCode action) {
         switch (action) {
             case InitSerialService:
@@ -144,26 +168,33 @@ public class ArduinoCommBle extends ArduinoComm {
             case WriteNext:
                 sendNextChunk();
                 break;
+            case LinkLost:
+                // a write may have been outstanding, a resumed upload starts on an empty queue.
+                toSend.clear();
+                onStatus(StatusCode.Disconnected);
+                break;
         }
     }
 
     /**
-     * For BLE we can only send 20 bytes at a time.
-     * Convert the integers from toSend and turn them into bytes.
+     * For BLE we can only send the negotiated MTU, less the ATT header, at a time. Android allows
+     * a single outstanding GATT operation, so the next chunk is written once onCharacteristicWrite
+     * reports the last one was accepted. Written without response that is as soon as the chunk is
+     * queued in the controller, rather than after a round trip to the module.
      * Ensure btGatt is valid, because sendNextChunk can be called after a disconnect.
      */
     private void sendNextChunk() {
-        if (toSend.size() > 0 && btGatt != null) {
-            int chunkSize = toSend.size() > 20 ? 20 : toSend.size();
-            byte chunk[] = new byte[chunkSize];
-            for (int i = 0; i < chunkSize; i += 1) {
-                chunk[i] = toSend.remove(0).byteValue();
-            }
+        if (btGatt == null) {
+            toSend.clear();
+            return;
+        }
 
+        byte[] chunk = toSend.nextChunk(chunkLen);
+        if (chunk != null) {
             charSerial.setValue(chunk);
-            btGatt.writeCharacteristic(charSerial);
-        } else {
-            pendingWrite = false;
+            if (!btGatt.writeCharacteristic(charSerial)) {
+                onError(ErrorCode.Send);
+            }
         }
     }
 
@@ -200,6 +231,7 @@ public class ArduinoCommBle extends ArduinoComm {
             return;
         }
         charSerial = characteristic;
+        charSerial.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 
         BluetoothGattDescriptor clientConfig = null;
         List<BluetoothGattDescriptor> descs = charSerial.getDescriptors();
@@ -224,12 +256,6 @@ public class ArduinoCommBle extends ArduinoComm {
 
     private class ArduinoGattCallback extends BluetoothGattCallback {
 
-        private Handler messenger;
-
-        public ArduinoGattCallback(Handler handler) {
-            messenger = handler;
-        }
-
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             super.onConnectionStateChange(gatt, status, newState);
@@ -242,9 +268,9 @@ public class ArduinoCommBle extends ArduinoComm {
                 btGatt.close();
                 btGatt = null;
                 charSerial = null;
-                messenger.obtainMessage(MessageConstants.STATUS, StatusCode.Disconnected).sendToTarget();
+                dispatch(MessageConstants.ACTION, ActionCode.LinkLost);
             } else {
-                messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.Connect).sendToTarget();
+                dispatch(MessageConstants.ERROR, ErrorCode.Connect);
                 taskConnectTimeout.cancel();
             }
         }
@@ -254,9 +280,9 @@ public class ArduinoCommBle extends ArduinoComm {
             super.onServicesDiscovered(gatt, status);
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                messenger.obtainMessage(MessageConstants.ACTION, ActionCode.InitSerialService).sendToTarget();
+                dispatch(MessageConstants.ACTION, ActionCode.InitSerialService);
             } else {
-                messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.Services).sendToTarget();
+                dispatch(MessageConstants.ERROR, ErrorCode.Services);
                 taskConnectTimeout.cancel();
             }
         }
@@ -271,9 +297,9 @@ public class ArduinoCommBle extends ArduinoComm {
             super.onCharacteristicWrite(gatt, characteristic, status);
 
             if (characteristic.equals(charSerial) && status == BluetoothGatt.GATT_SUCCESS) {
-                messenger.obtainMessage(MessageConstants.ACTION, ActionCode.WriteNext).sendToTarget();
+                dispatch(MessageConstants.ACTION, ActionCode.WriteNext);
             } else {
-                messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.Send).sendToTarget();
+                dispatch(MessageConstants.ERROR, ErrorCode.Send);
             }
         }
 
@@ -282,7 +308,40 @@ public class ArduinoCommBle extends ArduinoComm {
             super.onCharacteristicChanged(gatt, characteristic);
 
             if (characteristic.equals(charSerial)) {
-                messenger.obtainMessage(MessageConstants.READ, characteristic.getValue()).sendToTarget();
+                dispatch(MessageConstants.READ, characteristic.getValue());
+            }
+        }
+
+        /**
+         * Hidden in the SDK, but called by Android 8.0 and later whenever the link parameters
+         * change. The interval is in units of 1.25ms.
+         */
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                connectionInterval = interval * 1250;
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+
+            if (status == BluetoothGatt.GATT_SUCCESS && mtu > ATT_HEADER_LEN + DEFAULT_CHUNK_LEN) {
+                chunkLen = mtu - ATT_HEADER_LEN;
+            }
+
+            // the peripheral may exchange the MTU itself, or Android report it again.
+            if (mtuRequested) {
+                mtuRequested = false;
+                reportConnected();
+            }
+        }
+
+        private void reportConnected() {
+            if (!connectReported) {
+                connectReported = true;
+                taskConnectTimeout.cancel();
+                dispatch(MessageConstants.STATUS, StatusCode.Connected);
             }
         }
 
@@ -292,10 +351,13 @@ public class ArduinoCommBle extends ArduinoComm {
 
             if (descriptor.getUuid().toString().substring(4, 8).equalsIgnoreCase("2902")) {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
-                    taskConnectTimeout.cancel();
-                    messenger.obtainMessage(MessageConstants.STATUS, StatusCode.Connected).sendToTarget();
+                    // a larger MTU means fewer chunks per STK500 command.
+                    mtuRequested = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(REQUESTED_MTU);
+                    if (!mtuRequested) {
+                        reportConnected();
+                    }
                 } else {
-                    messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.IO).sendToTarget();
+                    dispatch(MessageConstants.ERROR, ErrorCode.IO);
                     taskConnectTimeout.cancel();
                 }
             }
@@ -0,0 +1,49 @@
+package com.e_regular_games.arduator.arduino;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+
+import java.lang.reflect.Method;
+
+/**
+ * @author S. Ryan Edgar
+ * An ArduinoComm reached through Android Bluetooth, the base of ArduinoCommBt and ArduinoCommBle.
+ * The Activity and BluetoothDevice are kept here, so ArduinoComm itself needs nothing of Android.
+ */
+public abstract class ArduinoCommBluetooth extends ArduinoComm {
+    /**
+     * EventHandlers are called on the UI thread of parent, until setEventExecutor changes it.
+     */
+    public ArduinoCommBluetooth(Activity parent, BluetoothDevice device) {
+        super(new ActivityExecutor(parent));
+        app = parent;
+        this.device = device;
+    }
+
+    @Override
+    public String getName() {
+        return device.getName() != null ? device.getName() : device.getAddress();
+    }
+
+    /**
+     * @return the hardware address of the device, which unlike the name is unique.
+     */
+    @Override
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    protected Activity app;
+    protected BluetoothDevice device;
+
+    // https://stackoverflow.com/questions/38055699/programmatically-pairing-with-a-ble-device-on-android-4-4
+    protected void deleteBondInformation() {
+        try {
+            // FFS Google, just unhide the method.
+            Method m = device.getClass().getMethod("removeBond", (Class[]) null);
+            m.invoke(device, (Object[]) null);
+        } catch (Exception e) {
+
+        }
+    }
+}
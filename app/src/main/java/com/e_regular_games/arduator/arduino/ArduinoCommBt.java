@@ -8,8 +8,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Message;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -20,16 +18,20 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.Pack200;
 
 /**
  * @author S. Ryan Edgar
  */
-public class ArduinoCommBt extends ArduinoComm {
+public class ArduinoCommBt extends ArduinoCommBluetooth {
 
     public ArduinoCommBt(Activity app, BluetoothDevice device) {
         super(app, device);
-        connThread = new ConnectionThread(device, messenger);
+        connThread = new ConnectionThread(device);
     }
 
     public void connect() {
@@ -71,6 +73,10 @@ public class ArduinoCommBt extends ArduinoComm {
                 device.setPin(pinCode.getBytes());
             }
 
+            // a thread runs once, each connection after the first needs a new one.
+            if (connThread.getState() != Thread.State.NEW) {
+                connThread = new ConnectionThread(device);
+            }
             connThread.start();
             onStatus(StatusCode.Connecting);
         }
@@ -83,7 +89,8 @@ public class ArduinoCommBt extends ArduinoComm {
         }
     }
 
-    public void send(int[] packet) {
+    @Override
+    public void send(byte[] packet) {
         connThread.write(packet);
     }
 
@@ -92,51 +99,56 @@ public class ArduinoCommBt extends ArduinoComm {
     }
 
     private ConnectionThread connThread;
-    private boolean connected = false;
+    private volatile boolean connected = false;
     private String pinCode;
 
-    private interface MessageConstants {
-        int READ = 1;
-        int ERROR = 2;
-        int STATUS = 4;
-    }
-
-    private Handler messenger = new Handler(new Handler.Callback() {
-        @Override
-        public boolean handleMessage(Message message) {
-            switch (message.what) {
-                case MessageConstants.ERROR:
-                    onError((ErrorCode) message.obj);
-                    break;
-
-                case MessageConstants.STATUS:
-                    onStatus((StatusCode) message.obj);
-                    break;
-
-                case MessageConstants.READ:
-                    onContent(message.arg1, (byte[]) message.obj);
-                    break;
-            }
-
-            return false;
-        }
-    });
-
     private static UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
 
     private class ConnectionThread extends Thread {
         private BluetoothDevice device;
         private BluetoothSocket socket;
-        private boolean closed = false;
+        private volatile boolean closed = false;
 
         private InputStream recvStream;
         private OutputStream sendStream;
-        private byte[] buffer = new byte[1024];
-        private Handler messenger;
+        // filled by this thread, emptied on the event executor by drain.
+        private ReceiveRing received = new ReceiveRing(0x1000);
+        private byte[] chunk = new byte[0x400];
+        private AtomicBoolean drainPosted = new AtomicBoolean(false);
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drainPosted.set(false);
+                int length;
+                while ((length = received.read(chunk)) > 0) {
+                    dispatchContent(length, chunk);
+                }
+            }
+        };
+
+        // packets waiting to be written, each is written to the socket in a single call.
+        private BlockingQueue<byte[]> outbox = new ArrayBlockingQueue<>(64);
+        private Thread writer = new Thread("ArduinoCommBtWriter") {
+            @Override
+            public void run() {
+                try {
+                    while (!closed) {
+                        byte[] packet = outbox.take();
+                        sendStream.write(packet);
+                        sendStream.flush();
+                    }
+                } catch (InterruptedException e) {
+                    // cancelled.
+                } catch (IOException e) {
+                    if (!closed) {
+                        onError(ErrorCode.Send);
+                    }
+                }
+            }
+        };
 
-        public ConnectionThread(BluetoothDevice device, Handler messenger) {
+        public ConnectionThread(BluetoothDevice device) {
             this.device = device;
-            this.messenger = messenger;
         }
 
         private boolean connect() {
@@ -158,12 +170,12 @@ public class ArduinoCommBt extends ArduinoComm {
 
         public void run() {
 
-            messenger.obtainMessage(MessageConstants.STATUS, StatusCode.Connecting).sendToTarget();
+            onStatus(StatusCode.Connecting);
             if (connect()) {
-                messenger.obtainMessage(MessageConstants.STATUS, StatusCode.Connected).sendToTarget();
+                onStatus(StatusCode.Connected);
                 connected = true;
             } else {
-                messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.Connect).sendToTarget();
+                onError(ErrorCode.Connect);
                 return;
             }
 
@@ -174,54 +186,59 @@ public class ArduinoCommBt extends ArduinoComm {
                 recvStream = socket.getInputStream();
                 sendStream = socket.getOutputStream();
             } catch (IOException e) {
-                messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.IO).sendToTarget();
+                onError(ErrorCode.IO);
             }
 
             if (recvStream == null || sendStream == null) {
-                messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.IO).sendToTarget();
+                onError(ErrorCode.IO);
                 return;
             }
+            writer.start();
 
             int numBytes; // bytes returned from read()
 
             // Keep listening to the InputStream until an exception occurs.
             while (true) {
                 try {
-                    // Read from the InputStream.
-                    numBytes = recvStream.read(buffer);
+                    // Read from the InputStream, straight into the ring.
+                    numBytes = received.write(recvStream);
 
-                    if (numBytes > 0) {
-                        messenger.obtainMessage(MessageConstants.READ, numBytes, -1, buffer).sendToTarget();
+                    if (numBytes > 0 && drainPosted.compareAndSet(false, true)) {
+                        events.execute(drain);
+                    } else if (numBytes < 0) {
+                        throw new IOException("end of stream");
                     }
                 } catch (IOException e) {
                     if (!closed) {
-                        messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.Receive).sendToTarget();
+                        // the link dropped, so the next connect starts over with a new thread.
+                        onError(ErrorCode.Receive);
+                        cancel();
                     }
                     break;
                 }
             }
         }
 
-        // Call this from the main activity to send data to the remote device.
-        public void write(int[] bytes) {
+        /**
+         * Queue a packet for the writer thread, waiting if the writer is too far behind.
+         */
+        public void write(byte[] packet) {
             try {
-                for (int i = 0; i < bytes.length; i += 1) {
-                    sendStream.write(bytes[i]);
-                }
-                sendStream.flush();
-            } catch (IOException e) {
-                if (!closed) {
-                    messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.Send).sendToTarget();
+                if (!outbox.offer(packet, 1, TimeUnit.SECONDS)) {
+                    onError(ErrorCode.Send);
                 }
+            } catch (InterruptedException e) {
+                onError(ErrorCode.Send);
             }
         }
 
         public void cancel() {
+            writer.interrupt();
             try {
                 closed = true;
                 socket.close();
                 connected = false;
-                messenger.obtainMessage(MessageConstants.STATUS, StatusCode.Disconnected).sendToTarget();
+                onStatus(StatusCode.Disconnected);
             } catch (IOException closeE) {
 
             }
@@ -1,13 +1,9 @@
 package com.e_regular_games.arduator.arduino;
 
-import android.app.Activity;
-import android.os.Handler;
-import android.os.Message;
-
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Executor;
 
 /**
  * @author S. Ryan Edgar
@@ -19,7 +15,7 @@ import java.util.TimerTask;
  * process completes, or if there is an error.
  */
 public class ArduinoCommUpdater {
-    public enum ErrorCode { Connect, IO, Send, Receive, Services, RemovePairing, Sync, GetParams, SetProgParams, Program, VerifyProgram, Timeout, PinRequired, ServiceIdRequired, FW_FileName, FW_CheckSum, FW_StartCode, FW_ContiguousAddressing, Upload };
+    public enum ErrorCode { Connect, IO, Send, Receive, Services, RemovePairing, Sync, GetParams, SetProgParams, Program, VerifyProgram, Timeout, PinRequired, ServiceIdRequired, FW_FileName, FW_CheckSum, FW_StartCode, FW_ContiguousAddressing, FW_Format, FW_AddressRange, Upload, Signature };
 
     public enum StatusCode {Connecting, FileCheck, Connected, Sync, GetParams, SetProgParams, Upload25, Upload50, Upload75, Upload100, Verifying, Complete, Disconnecting, Disconnected}
 
@@ -28,21 +24,83 @@ public class ArduinoCommUpdater {
         void onStatus(StatusCode progress);
     }
 
-    public ArduinoCommUpdater(Activity app, ArduinoComm device) {
-        this.app = app;
+    /**
+     * How far an upload has got. Pages skipped because the device already holds them count as
+     * written, they are not verified.
+     */
+    public static class Progress {
+        public final long bytesWritten, bytesVerified;
+        // bytes of firmware to write, -1 while the firmware is still being parsed.
+        public final long bytesTotal;
+        // recent rate of writing and verifying combined.
+        public final int bytesPerSecond;
+        // milliseconds until the upload completes, -1 if not known yet.
+        public final long etaMs;
+
+        public Progress(long bytesWritten, long bytesVerified, long bytesTotal, int bytesPerSecond, long etaMs) {
+            this.bytesWritten = bytesWritten;
+            this.bytesVerified = bytesVerified;
+            this.bytesTotal = bytesTotal;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaMs = etaMs;
+        }
+    }
+
+    public interface OnProgress {
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * How the updater decides which pages to program. Pages which are entirely 0xFF are never
+     * programmed nor verified, the same as pages which hold no data.
+     *
+     * Full: program and verify every page.
+     * ReadCompare: read each page from the device first and only program, then verify, the pages
+     * which differ. A page which already matches has been verified by reading it.
+     * CachedHash: skip the pages which FlashCache says were last written to this device with the
+     * same contents, then program and verify every other page.
+     */
+    public enum FlashMode {Full, ReadCompare, CachedHash}
+
+    /**
+     * How the updater checks the pages it programmed.
+     *
+     * Full: read back every page which was programmed and compare it.
+     * Sampled: read back the first and last pages and every sampleEvery'th page between. If any of
+     * them differs, every page is read back as in Full.
+     */
+    public enum VerifyMode {Full, Sampled}
+
+    /**
+     * @param device must deliver its events on loop.
+     * @param loop runs the upload, every command is sent and every response handled on it.
+     * @param callbacks where OnStatus is called.
+     */
+    public ArduinoCommUpdater(final ArduinoComm device, final EventLoop loop, Executor callbacks) {
         this.device = device;
+        this.loop = loop;
+        this.callbacks = callbacks;
 
-        device.addEventHandler(new ArduinoComm.EventHandler() {
+        deviceEvents = new ArduinoComm.EventHandler() {
             public void onError(ArduinoComm self, ArduinoComm.ErrorCode code) {
-                ArduinoCommUpdater.this.onError(ErrorCode.valueOf(code.name()));
+                if (ownsLink) {
+                    ArduinoCommUpdater.this.onError(ErrorCode.valueOf(code.name()));
+                }
             }
 
             public void onStatus(ArduinoComm self, ArduinoComm.StatusCode code) {
+                if (!ownsLink) {
+                    return; // a later upload to the same device.
+                }
+
                 switch (code) {
                     case Connected:
-                        if (inProgress == ActionCode.Wait) {
-                            Timer t = new Timer();
-                            t.schedule(new TimerTask() {
+                        if (aborted) {
+                            device.disconnect();
+                        } else if (inProgress == ActionCode.Wait) {
+                            metrics.startPhase(UploadMetrics.Phase.Sync);
+                            device.setHighThroughput(true);
+                            loop.postDelayed(new Runnable() {
                                 @Override
                                 public void run() {
                                     doAction(ActionCode.Sync1);
@@ -52,10 +110,14 @@ public class ArduinoCommUpdater {
                     break;
 
                     case Disconnected:
-                        if (taskPendingResponse != null) {
-                            taskPendingResponse.cancel();
-                        }
+                        loop.removeCallbacks(responseTimeout);
+                        loop.removeCallbacks(keepAlive);
+                        loop.removeCallbacks(drained);
+                        draining = false;
+                        rewindPending(); // resume sends them again.
                         inProgress = ActionCode.Wait;
+                        metrics.startPhase(null);
+                        ownsLink = false;
                         break;
                 }
 
@@ -63,36 +125,164 @@ public class ArduinoCommUpdater {
             }
 
             public void onContent(ArduinoComm self, int length, byte[] content) {
-                for (int i = 0; i < length; i += 1) {
-                    toParse.add(content[i]);
+                if (!ownsLink) {
+                    return;
                 }
-
-                parsePending(toParse);
+                metrics.addBytes(0, length);
+                if (draining) {
+                    // a reply to a command sent before the framing error, wait for the next.
+                    loop.removeCallbacks(drained);
+                    loop.postDelayed(drained, getDrainMs());
+                    return;
+                }
+                toParse.append(content, length);
+                parsePending();
             }
-        });
+        };
+        device.addEventHandler(deviceEvents);
+    }
+
+    /**
+     * Stop handling the events of the device, once this updater will not upload or resume again.
+     * Call it on the loop.
+     */
+    public void release() {
+        device.removeEventHandler(deviceEvents);
     }
 
     public void setOnStatus(OnStatus status) {
         this.status = status;
     }
 
+    /**
+     * Report progress as pages are written and verified. Reports are coalesced so that at most
+     * one is made per interval, the last one when the upload completes.
+     * @param intervalMs the least time between reports.
+     */
+    public void setOnProgress(OnProgress progress, int intervalMs) {
+        this.progress = progress;
+        this.progressIntervalMs = Math.max(0, intervalMs);
+    }
+
+    /**
+     * @param mode see FlashMode, Full by default.
+     * @param cache hashes of the pages last written to each device, required for CachedHash. It
+     *              is updated after every successful upload in any mode.
+     */
+    public void setFlashMode(FlashMode mode, FlashCache cache) {
+        flashMode = mode;
+        flashCache = cache;
+    }
+
+    /**
+     * Pipelining sends the LoadAddress for a page together with the ProgPage or ReadPage which
+     * follows it, and keeps up to window such page operations in flight. Responses are matched in
+     * the order the commands were sent. After the first timeout, corrupted reply or page which
+     * reads back differently the upload falls back to lockstep and resends every page operation
+     * which was not acknowledged.
+     *
+     * Optiboot reads the serial port only between commands and has a 2 byte receive buffer, so a
+     * window larger than 1 relies on the Bluetooth module holding back bytes while a page is being
+     * written to flash.
+     * @param window the number of page operations in flight, 0 (the default) sends one command
+     *               at a time and waits for its response.
+     */
+    public void setPipelineWindow(int window) {
+        pipelineWindow = Math.max(0, Math.min(MAX_WINDOW, window));
+    }
+
+    /**
+     * @param mode see VerifyMode, Full by default.
+     * @param sampleEvery for Sampled, read back one page in this many.
+     */
+    public void setVerifyMode(VerifyMode mode, int sampleEvery) {
+        verifyMode = mode;
+        this.sampleEvery = Math.max(1, sampleEvery);
+    }
+
+    /**
+     * @param profile the microcontroller being programmed, ATmega328P by default. Its block size
+     *                is the number of bytes programmed and verified per command.
+     */
+    public void setDeviceProfile(DeviceProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * The firmware is parsed on a background thread while the device connects and the bootloader
+     * is synchronized. Programming starts with the first page that is ready and waits, keeping the
+     * bootloader alive, for any page which has not been parsed yet.
+     * @param in Stream containing the data of the firmware file.
+     */
     public void upload(InputStream in) {
+        upload(new FirmwareStream(in, profile.getBlockSize()));
+    }
+
+    /**
+     * Upload Firmware which has already been loaded, the same Firmware may be uploaded to several
+     * devices at once.
+     */
+    public void upload(Firmware loaded) {
+        upload(new FirmwareStream(loaded));
+    }
+
+    private void upload(FirmwareStream stream) {
         completed = false;
+        aborted = false;
+        resumable = false;
+        resuming = false;
         onStatus(StatusCode.FileCheck);
 
-        firmware = new Firmware();
-        if (!firmware.load(in)) {
-            Firmware.ErrorCode ferr = firmware.getError();
-            onError(ErrorCode.valueOf(ferr.name()));
-            return;
+        blockLen = profile.getBlockSize();
+        fwPage = new byte[blockLen];
+        fwStream = stream;
+        firmware = fwStream.getFirmware();
+        fwWritePage = 0;
+        fwVerifyPage = 0;
+        sampling = verifyMode == VerifyMode.Sampled && sampleEvery > 1;
+        cachedHashes = new long[0];
+        clearPending();
+        pipelined = pipelineWindow > 0;
+        timeouts = 0;
+        retransmitted = false;
+        for (RetransmitTimer timer : retransmitTimers) {
+            timer.reset();
         }
+        pagesSkipped = 0;
+        pagesVerified = 0;
+        loop.removeCallbacks(reportProgress);
+        progressScheduled = false;
+        progressAt = 0;
+        progressBytes = 0;
+        progressRate = 0;
+        metrics = new UploadMetrics();
+        metrics.startPhase(UploadMetrics.Phase.Connect);
+
+        fwStream.start(new FirmwareStream.OnPages() {
+            @Override
+            public void onPagesReady(FirmwareStream self) {
+                loop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (inProgress == ActionCode.WaitForPage) {
+                            writeNextPage();
+                        }
+                    }
+                });
+            }
 
-        fwBytes = firmware.getBytes();
-        fwAddress = firmware.getStartAddress();
-        fwBytesWritten = 0;
-        fwBytesVerified = 0;
-        timeouts = 0;
+            @Override
+            public void onError(FirmwareStream self, final Firmware.ErrorCode code) {
+                loop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArduinoCommUpdater.this.onError(ErrorCode.valueOf(code.name()));
+                    }
+                });
+            }
+        });
 
+        ownsLink = true;
         device.connect();
     }
 
@@ -100,87 +290,203 @@ public class ArduinoCommUpdater {
         return completed;
     }
 
+    /**
+     * @return the firmware of the last upload. It may still be loading while the upload runs, it
+     * is complete once the upload succeeds. After a FW_ error it tells on which line the file
+     * failed, see Firmware.getErrorLine.
+     */
+    public Firmware getFirmware() {
+        return firmware;
+    }
+
+    /**
+     * @return true if the last upload was interrupted after programming began, by the link
+     * dropping or an error communicating with the device, and may be resumed.
+     */
+    public boolean canResume() {
+        return resumable && !completed;
+    }
+
+    /**
+     * Reconnect and continue an interrupted upload from the pages which were not acknowledged.
+     * The pages which were acknowledged are not programmed again, but are still verified.
+     * @param checkBoundary read back the last page acknowledged before the interruption first,
+     *                      and program it again if it does not hold what was written.
+     * @return false if there is nothing to resume, see canResume.
+     */
+    public boolean resume(boolean checkBoundary) {
+        if (!canResume()) {
+            return false;
+        }
+
+        aborted = false;
+        resuming = true;
+        resumeBoundary = checkBoundary ? lastProgrammed : -1;
+        pipelined = pipelineWindow > 0;
+        timeouts = 0;
+        retransmitted = false;
+        toParse.clear();
+        metrics.startPhase(UploadMetrics.Phase.Connect);
+        ownsLink = true;
+        device.connect();
+        return true;
+    }
+
+    /**
+     * @return the connection interval of the link to the device in microseconds, -1 if unknown.
+     */
+    public int getConnectionInterval() {
+        return device.getConnectionInterval();
+    }
+
+    /**
+     * @return what has been measured of the current upload, or the last one once it ends.
+     */
+    public UploadMetrics getMetrics() {
+        return metrics;
+    }
+
     private boolean completed = false;
-    protected Activity app;
     protected ArduinoComm device;
+    private ArduinoComm.EventHandler deviceEvents;
+    protected EventLoop loop;
+    protected Executor callbacks;
     private OnStatus status;
+    private OnProgress progress;
+    private FirmwareStream fwStream;
     private Firmware firmware;
-    private ArrayList<Integer> fwBytes;
-    private int fwBytesWritten = 0, fwAddress = 0, fwBytesVerified = 0;
+    private boolean aborted = false;
+    // from the connect this updater makes until that link is disconnected, the device may be
+    // uploaded to again by another updater afterwards.
+    private boolean ownsLink = false;
+    // programming has begun, so an interrupted upload can continue where it stopped.
+    private boolean resumable = false, resuming = false;
+    private int lastProgrammed = -1, resumeBoundary = -1;
+    private DeviceProfile profile = DeviceProfile.ATMEGA328P;
+    private int blockLen = DeviceProfile.ATMEGA328P.getBlockSize(), extendedAddress = -1;
+    private byte[] fwPage = new byte[blockLen];
+    private int fwWritePage = 0, fwVerifyPage = 0;
+    private VerifyMode verifyMode = VerifyMode.Full;
+    private int sampleEvery = 8;
+    private boolean sampling = false;
+    private BitSet fwProgrammed = new BitSet(), fwDone = new BitSet();
+    private boolean verifying = false;
+    private FlashMode flashMode = FlashMode.Full;
+    private FlashCache flashCache;
+    private long[] cachedHashes = new long[0];
     private ActionCode inProgress = ActionCode.Wait;
-    private ArrayList<Byte> toParse = new ArrayList<>();
-    protected Timer timer = new Timer();
-    private TimerTask taskPendingResponse;
-    private int retries = 0;
-    private static final int PAGE_LEN = 0x80;
 
-    protected enum ActionCode {Wait, InitSerialService, Sync1, Sync2, Sync3, GetParam1, GetParam2, SetProgParams, SetExProgParams, EnterProgMode, ReadSignature, LoadAddressToWrite, LoadAddressToVerify, ExitProgMode, ReadPage, Program, WriteNext}
-    protected interface MessageConstants {
-        int ERROR = 2;
-    }
+    // commands of page operations which are waiting for a response, oldest first.
+    private ActionCode[] pendingActions = new ActionCode[3 * MAX_WINDOW + 3];
+    private int[] pendingPages = new int[3 * MAX_WINDOW + 3];
+    private long[] pendingSentAt = new long[3 * MAX_WINDOW + 3];
+    private long sentAt = 0;
+    private UploadMetrics metrics = new UploadMetrics();
+    private int pendingHead = 0, pendingCount = 0, pageOpsInFlight = 0;
+    private int pipelineWindow = 0;
+    private boolean pipelined = false;
+    private ResponseBuffer toParse = new ResponseBuffer(0x200);
+    private int retries = 0;
+    private static final int KEEP_ALIVE_MS = 250;
+    private static final int MAX_WINDOW = 8;
 
-    protected class OpTimeout extends TimerTask {
-        private Handler messenger;
+    protected enum ActionCode {Wait, InitSerialService, Sync1, Sync2, Sync3, GetParam1, GetParam2, SetProgParams, SetExProgParams, EnterProgMode, ReadSignature, LoadExtendedAddress, LoadAddressToWrite, LoadAddressToVerify, LoadAddressToCompare, ExitProgMode, ReadPage, ReadPageToCompare, Program, WriteNext, WaitForPage, KeepAlive, Idle}
+    // posted to the loop when a command is sent, removed when its response arrives.
+    private final Runnable responseTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
 
-        public OpTimeout(Handler handler) {
-            messenger = handler;
+    // after a framing error the replies still in flight are discarded, until the link is quiet.
+    private boolean draining = false;
+    private final Runnable drained = new Runnable() {
+        @Override
+        public void run() {
+            draining = false;
+            retryPageOps();
         }
+    };
 
+    private final Runnable keepAlive = new Runnable() {
         @Override
         public void run() {
-            messenger.obtainMessage(MessageConstants.ERROR, ErrorCode.Timeout).sendToTarget();
+            if (inProgress == ActionCode.WaitForPage) {
+                doAction(ActionCode.KeepAlive);
+            }
         }
-    }
+    };
 
     private int verifies = 0;
     private int timeouts = 0;
-    protected Handler messenger = new Handler(new Handler.Callback() {
+
+    private int progressIntervalMs = 250;
+    private boolean progressScheduled = false;
+    private int pagesSkipped = 0, pagesVerified = 0;
+    private long progressAt = 0, progressBytes = 0;
+    private double progressRate = 0;
+    private final Runnable reportProgress = new Runnable() {
         @Override
-        public boolean handleMessage(Message message) {
-            if (message.what == MessageConstants.ERROR) {
-                ErrorCode code = (ErrorCode) message.obj;
-                if (code == ErrorCode.Timeout && timeouts < 5) {
-                    timeouts += 1;
-                    switch (inProgress) {
-                        case ReadPage:
-                            doAction(ActionCode.LoadAddressToVerify);
-                            break;
-                        case Program:
-                            doAction(ActionCode.LoadAddressToWrite);
-                            break;
-                        default:
-                            doAction(inProgress);
+        public void run() {
+            progressScheduled = false;
+            reportProgress();
+        }
+    };
 
-                    }
-                } else {
-                    onError(code);
-                }
-            }
+    // one per UploadMetrics.Command, the round trips of each kind of command differ widely.
+    private final RetransmitTimer[] retransmitTimers = new RetransmitTimer[UploadMetrics.Command.values().length];
+    // the response which arrives next may be to either the original or the resent command.
+    private boolean retransmitted = false;
+    private static final int INITIAL_TIMEOUT_MS = 1000, MIN_TIMEOUT_MS = 100, MAX_TIMEOUT_MS = 8000;
 
-            return false;
+    {
+        for (int i = 0; i < retransmitTimers.length; i += 1) {
+            retransmitTimers[i] = new RetransmitTimer(INITIAL_TIMEOUT_MS, MIN_TIMEOUT_MS, MAX_TIMEOUT_MS);
         }
-    });
+    }
+
+    private void onTimeout() {
+        metrics.addTimeout();
+        if (timeouts < 5) {
+            timeouts += 1;
+            retransmitTimers[getCommand(inProgress).ordinal()].backOff();
+            retransmitted = true;
+            metrics.addRetry();
+            if (pendingCount > 0) {
+                retryPageOps();
+            } else {
+                doAction(inProgress);
+            }
+        } else {
+            onError(ErrorCode.Timeout);
+        }
+    }
 
     private int getExpectedMessageLength() {
         switch (inProgress) {
             case Sync1:
             case Sync2:
             case Sync3:
+            case KeepAlive:
             case SetProgParams:
             case SetExProgParams:
             case EnterProgMode:
             case LoadAddressToWrite:
             case LoadAddressToVerify:
+            case LoadAddressToCompare:
             case Program:
             case ExitProgMode:
                 return 2;
             case GetParam1:
             case GetParam2:
+            case LoadExtendedAddress:
                 return 3;
             case ReadSignature:
                 return 5;
             case ReadPage:
-                return 2 + PAGE_LEN;
+            case ReadPageToCompare:
+                return 2 + blockLen;
         }
 
         return 0;
@@ -189,32 +495,46 @@ public class ArduinoCommUpdater {
     ;
 
     private void cleanPending(int len) {
-        for (; len > 0; len--) {
-            toParse.remove(0);
+        toParse.skip(len);
+    }
+
+    private void parsePending() {
+        // a pipelined upload may receive several responses at once.
+        while (!aborted && parseResponse()) {
         }
     }
 
-    private void parsePending(ArrayList<Byte> toParse) {
-        while (toParse.size() > 0 && toParse.get(0) != 0x14) {
-            toParse.remove(0);
+    /**
+     * @return true if a whole response was consumed from toParse.
+     */
+    private boolean parseResponse() {
+        if (!toParse.skipTo((byte) 0x14)) {
+            return false;
         }
 
         int msgLen = getExpectedMessageLength();
         if (msgLen == 0 || toParse.size() < msgLen) {
-            return;
+            return false;
         }
 
         boolean validEnding = toParse.get(msgLen - 1) == 0x10;
-        if (!validEnding) {
+        if (!validEnding && pipelined && pendingCount > 0) {
+            resyncPageOps();
+            return false;
+        } else if (!validEnding) {
             cleanPending(msgLen);
-            return;
-        }
-
-        if (taskPendingResponse != null) {
-            taskPendingResponse.cancel();
+            return true;
         }
 
+        loop.removeCallbacks(responseTimeout);
         timeouts = 0;
+        long rtt = System.nanoTime() - getSentAt();
+        metrics.addRoundTrip(getCommand(inProgress), rtt);
+        if (!retransmitted) {
+            retransmitTimers[getCommand(inProgress).ordinal()].addSample(rtt);
+        }
+        retransmitted = false;
+        int page = pendingCount > 0 ? pendingPages[pendingHead] : -1;
         switch (inProgress) {
             case Sync1:
                 doAction(ActionCode.Sync2);
@@ -261,75 +581,106 @@ public class ArduinoCommUpdater {
                 break;
 
             case ReadSignature:
-                if (toParse.get(1) == 0x1E && toParse.get(2) == (byte) 0x95 && toParse.get(3) == 0x0F) {
-                    fwAddress = firmware.getStartAddress();
-                    fwBytesWritten = 0;
-                    doAction(ActionCode.LoadAddressToWrite);
+                int[] target = firmware.getTargetSignature();
+                if (target != null && !profile.matchesSignature(target)) {
+                    onError(ErrorCode.Signature); // built for another device.
+                } else if (profile.matchesSignature(toParse) && resuming) {
+                    resume();
+                } else if (profile.matchesSignature(toParse)) {
+                    resumable = true;
+                    lastProgrammed = -1;
+                    fwWritePage = 0;
+                    extendedAddress = -1;
+                    fwProgrammed.clear();
+                    fwDone.clear();
+                    verifying = false;
+                    if (flashCache != null) {
+                        cachedHashes = flashCache.take(device.getAddress(), blockLen);
+                    }
+                    metrics.startPhase(UploadMetrics.Phase.Program);
+                    writeNextPage();
                 } else {
-                    onError(ErrorCode.Program);
+                    onError(ErrorCode.Signature);
                 }
                 break;
 
             case Program:
-                fwBytesWritten += PAGE_LEN;
-                fwAddress += (PAGE_LEN / 2); // page_len is in bytes, address is in words.
-
-                if (fwBytesWritten >= fwBytes.size()) {
-                    onStatus(StatusCode.Verifying);
-                    fwAddress = firmware.getStartAddress();
-                    fwBytesVerified = 0;
-                    doAction(ActionCode.LoadAddressToVerify);
-                } else if (fwBytesWritten >= fwBytes.size() * 0.75) {
-                    onStatus(StatusCode.Upload75);
-                    doAction(ActionCode.LoadAddressToWrite);
-                } else if (fwBytesWritten >= fwBytes.size() * 0.50) {
-                    onStatus(StatusCode.Upload50);
-                    doAction(ActionCode.LoadAddressToWrite);
-                } else if (fwBytesWritten >= fwBytes.size() * 0.25) {
-                    onStatus(StatusCode.Upload25);
-                    doAction(ActionCode.LoadAddressToWrite);
-                } else {
-                    doAction(ActionCode.LoadAddressToWrite);
-                }
+                popPending(true);
+                fwProgrammed.set(page);
+                lastProgrammed = page;
+                metrics.addPage(true);
+                onPageWritten(page);
+                writeNextPage();
                 break;
 
-            case ReadPage:
-                for (int i = 0; i < PAGE_LEN; i += 1) {
-                    int verify = fwBytesVerified + i < fwBytes.size() ? fwBytes.get(fwBytesVerified + i) : 0xFF;
-                    if (toParse.get(1 + i) != (byte) verify) {
-                        if (verifies < 10) {
-                            verifies += 1;
-                            cleanPending(msgLen);
-                            doAction(ActionCode.LoadAddressToVerify);
-                        } else {
-                            onError(ErrorCode.VerifyProgram);
-                        }
-
-                        return;
+            case ReadPageToCompare:
+                popPending(true);
+                firmware.getPage(page, fwPage);
+                if (matchesPage(toParse, fwPage)) {
+                    if (!fwProgrammed.get(page)) {
+                        metrics.addPage(false);
+                        pagesSkipped += 1;
                     }
+                    onPageWritten(page);
+                } else {
+                    sendPageOp(ActionCode.LoadAddressToWrite, page);
                 }
+                writeNextPage();
+                break;
 
-                verifies = 0;
-                fwBytesVerified += PAGE_LEN;
+            case KeepAlive:
+                writeNextPage();
+                break;
 
-                if (fwBytesVerified < fwBytes.size()) {
-                    fwAddress += (PAGE_LEN / 2); // page_len is in bytes, address is in words.
-                    doAction(ActionCode.LoadAddressToVerify);
-                } else if (fwBytesVerified >= fwBytes.size()) {
-                    doAction(ActionCode.ExitProgMode);
+            case ReadPage:
+                popPending(true);
+                firmware.getPage(page, fwPage);
+                if (!matchesPage(toParse, fwPage)) {
+                    metrics.addVerifyMismatch();
+                    if (sampling) {
+                        // a sampled page differs, so others may too.
+                        sampling = false;
+                        fwVerifyPage = 0;
+                    }
+                    if (verifies < 10 && pipelined) {
+                        // the reply may have been matched to the wrong read, read it again.
+                        verifies += 1;
+                        fwVerifyPage = Math.min(fwVerifyPage, page);
+                        resyncPageOps();
+                        return false;
+                    } else if (verifies < 10) {
+                        // read the page again, after any reads which are already in flight.
+                        verifies += 1;
+                        sendPageOp(ActionCode.LoadAddressToVerify, page);
+                    } else {
+                        onError(ErrorCode.VerifyProgram);
+                        cleanPending(msgLen);
+                        return true;
+                    }
+                } else {
+                    verifies = 0;
+                    pagesVerified += 1;
+                    onProgressChanged();
                 }
 
+                verifyNextPage();
                 break;
 
+            case LoadExtendedAddress:
             case LoadAddressToWrite:
-                doAction(ActionCode.Program);
-                break;
-
             case LoadAddressToVerify:
-                doAction(ActionCode.ReadPage);
+            case LoadAddressToCompare:
+                popPending(false);
                 break;
 
             case ExitProgMode:
+                loop.removeCallbacks(reportProgress);
+                progressScheduled = false;
+                reportProgress();
+                metrics.startPhase(null);
+                metrics.setConnectionInterval(device.getConnectionInterval());
+                device.setHighThroughput(false);
+                rememberPages();
                 onStatus(StatusCode.Complete); // must set status before completed!
                 completed = true;
                 device.disconnect();
@@ -337,12 +688,438 @@ public class ArduinoCommUpdater {
         }
 
         cleanPending(msgLen);
+        if (pendingCount > 0) {
+            armTimeout(); // for the response which is now the oldest.
+        }
+        return true;
+    }
+
+    private boolean matchesPage(ResponseBuffer response, byte[] page) {
+        return response.matches(1, page, blockLen);
+    }
+
+    private static boolean isBlank(byte[] page) {
+        for (byte b : page) {
+            if (b != (byte) 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesCache(int page, byte[] contents) {
+        return flashMode == FlashMode.CachedHash && page < cachedHashes.length
+                && cachedHashes[page] != FlashCache.UNKNOWN && cachedHashes[page] == firmware.getPageHash(page, contents);
+    }
+
+    /**
+     * A page has been programmed, or skipped because the device already holds it.
+     */
+    private void onPageWritten(int page) {
+        fwDone.set(page);
+        int fwPagesWritten = fwDone.cardinality();
+        onProgressChanged();
+
+        // the number of pages is only known once the whole file has been parsed.
+        int fwPages = fwStream.isComplete() ? firmware.getPageCount(blockLen) : Integer.MAX_VALUE;
+        if (fwPagesWritten >= fwPages) {
+            // writeNextPage will start verifying.
+        } else if (fwPagesWritten >= fwPages * 0.75) {
+            onStatus(StatusCode.Upload75);
+        } else if (fwPagesWritten >= fwPages * 0.50) {
+            onStatus(StatusCode.Upload50);
+        } else if (fwPagesWritten >= fwPages * 0.25) {
+            onStatus(StatusCode.Upload25);
+        }
+    }
+
+    private void onProgressChanged() {
+        if (progress == null || progressScheduled) {
+            return;
+        }
+
+        progressScheduled = true;
+        long sinceLast = (System.nanoTime() - progressAt) / 1000000;
+        loop.postDelayed(reportProgress, Math.max(0, progressIntervalMs - sinceLast));
+    }
+
+    /**
+     * The rate is smoothed over the last few reports, so that a link which degrades shows up
+     * within a second or two rather than being hidden by the average of the whole upload.
+     */
+    private void reportProgress() {
+        if (progress == null) {
+            return;
+        }
+
+        long written = (long) fwDone.cardinality() * blockLen;
+        long verified = (long) pagesVerified * blockLen;
+        long total = fwStream.isComplete() ? (long) firmware.getPageCount(blockLen) * blockLen : -1;
+
+        long now = System.nanoTime();
+        long done = written + verified;
+        if (progressAt != 0 && now > progressAt) {
+            double rate = (done - progressBytes) * 1e9 / (now - progressAt);
+            progressRate = progressRate == 0 ? rate : 0.5 * progressRate + 0.5 * rate;
+        }
+        progressAt = now;
+        progressBytes = done;
+
+        long eta = -1;
+        if (total >= 0 && progressRate > 0) {
+            long toVerify = total - (long) pagesSkipped * blockLen;
+            long remaining = total + (sampling ? toVerify / sampleEvery : toVerify) - done;
+            eta = (long) (Math.max(0, remaining) * 1000 / progressRate);
+        }
+
+        final Progress report = new Progress(written, verified, total, (int) progressRate, eta);
+        final OnProgress listener = progress;
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(report);
+            }
+        });
+    }
+
+    /**
+     * Program the next pages which have been parsed, up to the pipeline window, otherwise wait for
+     * them. While waiting a sync is sent periodically, the bootloader exits to the existing sketch
+     * if it goes too long without a command. Once every page has been written, verifying begins.
+     */
+    private void writeNextPage() {
+        loop.removeCallbacks(keepAlive);
+
+        // pages which hold no data are skipped, they are left as they are.
+        int page = -1;
+        while (pageOpsInFlight < getWindow() && (page = firmware.nextPage(fwWritePage, blockLen)) >= 0 && fwStream.isPageReady(page)) {
+            if ((page + 1) * blockLen > profile.getFlashSize()) {
+                onError(ErrorCode.FW_AddressRange);
+                return;
+            }
+
+            fwWritePage = page + 1;
+            firmware.getPage(page, fwPage);
+            if (isBlank(fwPage) || matchesCache(page, fwPage)) {
+                metrics.addPage(false);
+                pagesSkipped += 1;
+                onPageWritten(page);
+                continue;
+            }
+
+            sendPageOp(flashMode == FlashMode.ReadCompare ? ActionCode.LoadAddressToCompare : ActionCode.LoadAddressToWrite, page);
+        }
+
+        if (pageOpsInFlight > 0) {
+            return; // the next response continues the upload.
+        }
+
+        if (page < 0 && fwStream.isComplete()) {
+            verifying = true;
+            fwVerifyPage = 0;
+            onStatus(StatusCode.Verifying);
+            metrics.startPhase(UploadMetrics.Phase.Verify);
+            verifyNextPage();
+            return;
+        }
+
+        inProgress = ActionCode.WaitForPage;
+        loop.postDelayed(keepAlive, KEEP_ALIVE_MS);
+    }
+
+    /**
+     * Verify the next pages which were programmed, up to the pipeline window, or leave programming
+     * mode once all of them have been verified.
+     */
+    private void verifyNextPage() {
+        int page;
+        while (pageOpsInFlight < getWindow() && (page = nextPageToVerify(fwVerifyPage)) >= 0) {
+            fwVerifyPage = page + 1;
+            sendPageOp(ActionCode.LoadAddressToVerify, page);
+        }
+
+        if (pageOpsInFlight == 0) {
+            doAction(ActionCode.ExitProgMode);
+        }
+    }
+
+    /**
+     * @return the first page at or after fromPage which was programmed and is to be read back, -1
+     * if there are no more.
+     */
+    private int nextPageToVerify(int fromPage) {
+        int last = fwProgrammed.length() - 1;
+        int page = fwProgrammed.nextSetBit(fromPage);
+        while (sampling && page >= 0 && page != last && page % sampleEvery != 0 && page != fwProgrammed.nextSetBit(0)) {
+            page = fwProgrammed.nextSetBit(page + 1);
+        }
+        return page;
+    }
+
+    private int getWindow() {
+        return pipelined ? pipelineWindow : 1;
+    }
+
+    private static ActionCode followingAction(ActionCode loadAddress) {
+        switch (loadAddress) {
+            case LoadAddressToWrite:
+                return ActionCode.Program;
+            case LoadAddressToVerify:
+                return ActionCode.ReadPage;
+            default:
+                return ActionCode.ReadPageToCompare;
+        }
+    }
+
+    /**
+     * Start a page operation, a LoadAddress followed by a ProgPage or ReadPage, preceded by the
+     * extended address when it changes. When pipelined the commands are sent in a single packet,
+     * otherwise each is sent once the one before it has been acknowledged.
+     */
+    private void sendPageOp(ActionCode loadAddress, int page) {
+        pageOpsInFlight += 1;
+        int first = pendingCount;
+        if (profile.needsExtendedAddress() && extendedAddress != getExtendedAddress(page)) {
+            extendedAddress = getExtendedAddress(page);
+            pushPending(ActionCode.LoadExtendedAddress, page);
+        }
+        pushPending(loadAddress, page);
+        pushPending(followingAction(loadAddress), page);
+
+        if (!pipelined) {
+            if (first == 0) {
+                sendPendingHead();
+            }
+            return;
+        }
+
+        int length = 0;
+        for (int i = first; i < pendingCount; i += 1) {
+            length += getCommandLength(pendingActions[(pendingHead + i) % pendingActions.length]);
+        }
+
+        byte[] packet = new byte[length];
+        int offset = 0;
+        long now = System.nanoTime();
+        for (int i = first; i < pendingCount; i += 1) {
+            int at = (pendingHead + i) % pendingActions.length;
+            offset = putPageCommand(pendingActions[at], pendingPages[at], packet, offset);
+            pendingSentAt[at] = now;
+        }
+        send(packet);
+        armTimeout();
+    }
+
+    private void sendPendingHead() {
+        byte[] packet = new byte[getCommandLength(pendingActions[pendingHead])];
+        putPageCommand(pendingActions[pendingHead], pendingPages[pendingHead], packet, 0);
+        pendingSentAt[pendingHead] = System.nanoTime();
+        send(packet);
+        armTimeout();
+    }
+
+    private void send(byte[] packet) {
+        metrics.addBytes(packet.length, 0);
+        device.send(packet);
+    }
+
+    private void send(int[] packet) {
+        metrics.addBytes(packet.length, 0);
+        sentAt = System.nanoTime();
+        device.send(packet);
+    }
+
+    private static UploadMetrics.Command getCommand(ActionCode action) {
+        switch (action) {
+            case Sync1:
+            case Sync2:
+            case Sync3:
+            case KeepAlive:
+                return UploadMetrics.Command.Sync;
+            case LoadExtendedAddress:
+            case LoadAddressToWrite:
+            case LoadAddressToVerify:
+            case LoadAddressToCompare:
+                return UploadMetrics.Command.LoadAddress;
+            case Program:
+                return UploadMetrics.Command.Program;
+            case ReadPage:
+            case ReadPageToCompare:
+                return UploadMetrics.Command.ReadPage;
+            default:
+                return UploadMetrics.Command.Other;
+        }
+    }
+
+    private int getExtendedAddress(int page) {
+        return ((page * blockLen) >> 17) & 0xFF;
+    }
+
+    private void pushPending(ActionCode action, int page) {
+        int i = (pendingHead + pendingCount) % pendingActions.length;
+        pendingActions[i] = action;
+        pendingPages[i] = page;
+        pendingCount += 1;
+        inProgress = pendingActions[pendingHead];
+    }
+
+    /**
+     * @param pageOpDone true if the response completes a page operation.
+     */
+    private void popPending(boolean pageOpDone) {
+        pendingHead = (pendingHead + 1) % pendingActions.length;
+        pendingCount -= 1;
+        inProgress = pendingCount > 0 ? pendingActions[pendingHead] : ActionCode.Idle;
+        if (pageOpDone) {
+            pageOpsInFlight -= 1;
+        }
+        if (!pipelined && pendingCount > 0) {
+            sendPendingHead();
+        }
+    }
+
+    /**
+     * Continue an interrupted upload once the bootloader is in programming mode again, checking
+     * the boundary page before writing or verifying any other.
+     */
+    private void resume() {
+        resuming = false;
+        extendedAddress = -1;
+        metrics.startPhase(verifying ? UploadMetrics.Phase.Verify : UploadMetrics.Phase.Program);
+        if (verifying) {
+            verifyNextPage();
+            return;
+        }
+
+        if (resumeBoundary >= 0) {
+            sendPageOp(ActionCode.LoadAddressToCompare, resumeBoundary);
+        }
+        writeNextPage();
+    }
+
+    private void clearPending() {
+        pendingHead = 0;
+        pendingCount = 0;
+        pageOpsInFlight = 0;
+    }
+
+    /**
+     * Forget the page operations in flight and rewind to the oldest page which was not
+     * acknowledged. Pages after it may be written or read a second time.
+     */
+    private void rewindPending() {
+        int first = Integer.MAX_VALUE;
+        for (int i = 0; i < pendingCount; i += 1) {
+            first = Math.min(first, pendingPages[(pendingHead + i) % pendingPages.length]);
+        }
+
+        clearPending();
+        if (verifying) {
+            fwVerifyPage = Math.min(fwVerifyPage, first);
+        } else {
+            fwWritePage = Math.min(fwWritePage, first);
+        }
+    }
+
+    /**
+     * A pipelined reply was corrupted, or a page read back differently, so the replies which
+     * follow can no longer be trusted to match their commands. Everything received is discarded
+     * until the link has been quiet for a retransmission timeout, then the page operations are
+     * retried in lockstep.
+     */
+    private void resyncPageOps() {
+        loop.removeCallbacks(responseTimeout);
+        toParse.clear();
+        draining = true;
+        retransmitted = true;
+        metrics.addRetry();
+        loop.postDelayed(drained, getDrainMs());
+    }
+
+    private int getDrainMs() {
+        return retransmitTimers[getCommand(inProgress).ordinal()].getTimeout();
+    }
+
+    /**
+     * A page operation timed out or its reply was corrupted. Fall back to lockstep and resend
+     * from the oldest page which was not acknowledged.
+     */
+    private void retryPageOps() {
+        rewindPending();
+        toParse.clear();
+        pipelined = false;
+        extendedAddress = -1;
+        if (verifying) {
+            verifyNextPage();
+        } else {
+            writeNextPage();
+        }
+    }
+
+    /**
+     * Wait for the response to the oldest command in flight, for the retransmission timeout of its
+     * kind of command counted from when it was sent.
+     */
+    private void armTimeout() {
+        long waited = (System.nanoTime() - getSentAt()) / 1000000;
+        loop.removeCallbacks(responseTimeout);
+        loop.postDelayed(responseTimeout, Math.max(0, retransmitTimers[getCommand(inProgress).ordinal()].getTimeout() - waited));
+    }
+
+    /**
+     * @return when the command whose response is expected next was sent.
+     */
+    private long getSentAt() {
+        return pendingCount > 0 ? pendingSentAt[pendingHead] : sentAt;
+    }
+
+    /**
+     * After a successful upload every page which holds data is known to be on the device, while
+     * pages outside of the firmware still hold whatever the cache knew about before.
+     */
+    private void rememberPages() {
+        if (flashCache == null) {
+            return;
+        }
+
+        int pages = firmware.getEndAddress() / blockLen + 1;
+        long[] hashes = Arrays.copyOf(cachedHashes, Math.max(pages, cachedHashes.length));
+        Arrays.fill(hashes, cachedHashes.length, hashes.length, FlashCache.UNKNOWN);
+        for (int page = firmware.nextPage(0, blockLen); page >= 0; page = firmware.nextPage(page + 1, blockLen)) {
+            firmware.getPage(page, fwPage);
+            hashes[page] = isBlank(fwPage) ? FlashCache.UNKNOWN : firmware.getPageHash(page, fwPage);
+        }
+        flashCache.put(device.getAddress(), blockLen, hashes);
     }
 
     private void handleError(ErrorCode err) {
+        aborted = true;
+        if (!isResumable(err)) {
+            resumable = false;
+        }
+        loop.removeCallbacks(keepAlive);
+        metrics.startPhase(null);
+        device.setHighThroughput(false);
         device.disconnect();
     }
 
+    /**
+     * @return false if resuming after the error would fail the same way again.
+     */
+    private static boolean isResumable(ErrorCode err) {
+        switch (err) {
+            case Signature:
+            case FW_FileName:
+            case FW_CheckSum:
+            case FW_StartCode:
+            case FW_ContiguousAddressing:
+            case FW_Format:
+            case FW_AddressRange:
+                return false;
+        }
+        return true;
+    }
+
     private StatusCode lastStatus;
 
     protected void onStatus(final StatusCode stat) {
@@ -351,7 +1128,7 @@ public class ArduinoCommUpdater {
         }
 
         lastStatus = stat;
-        app.runOnUiThread(new Runnable() {
+        callbacks.execute(new Runnable() {
             @Override
             public void run() {
                 if (status != null) {
@@ -362,7 +1139,7 @@ public class ArduinoCommUpdater {
     }
 
     protected void onError(final ErrorCode err) {
-        app.runOnUiThread(new Runnable() {
+        callbacks.execute(new Runnable() {
             @Override
             public void run() {
                 if (status != null) {
@@ -381,55 +1158,80 @@ public class ArduinoCommUpdater {
             case Sync1:
             case Sync2:
             case Sync3:
-                device.send(new int[]{0x30, 0x20});
+            case KeepAlive:
+                send(new int[]{0x30, 0x20});
                 break;
             case GetParam1:
-                device.send(new int[]{0x41, 0x81, 0x20});
+                send(new int[]{0x41, 0x81, 0x20});
                 break;
             case GetParam2:
-                device.send(new int[]{0x41, 0x82, 0x20});
+                send(new int[]{0x41, 0x82, 0x20});
                 break;
             case SetProgParams:
-                device.send(new int[]{0x42, 0x86, 0x00, 0x00, 0x01, 0x01, 0x01, 0x01, 0x03, 0xFF, 0xFF, 0xFF, 0xFF, 0x00, 0x80, 0x04, 0x00, 0x00, 0x00, 0x80, 0x00, 0x20});
+                send(profile.getProgParams());
                 break;
             case SetExProgParams:
-                device.send(new int[]{0x45, 0x05, 0x04, 0xD7, 0xC2, 0x00, 0x20});
+                send(profile.getExProgParams());
                 break;
             case EnterProgMode:
-                device.send(new int[]{0x50, 0x20});
+                send(new int[]{0x50, 0x20});
                 break;
             case ReadSignature:
-                device.send(new int[]{0x75, 0x20});
+                send(new int[]{0x75, 0x20});
+                break;
+            case ExitProgMode:
+                send(new int[]{0x51, 0x20});
                 break;
+        }
+
+        armTimeout();
+    }
+
+    /**
+     * @return the bytes of a command which acts on a single page.
+     */
+    private int getCommandLength(ActionCode action) {
+        switch (action) {
+            case LoadExtendedAddress:
+                return 6;
             case LoadAddressToVerify:
             case LoadAddressToWrite:
-                device.send(new int[]{0x55, 0xFF & fwAddress, 0xFF & (fwAddress >> 8), 0x20});
-                break;
+            case LoadAddressToCompare:
+                return 4;
             case Program:
-                int bytes[] = new int[5 + PAGE_LEN];
-                bytes[0] = 0x64;
-                bytes[1] = (PAGE_LEN >> 8) & 0xFF;
-                bytes[2] = PAGE_LEN & 0xFF;
-                bytes[3] = 0x46;
-                for (int i = 0; i < PAGE_LEN; i += 1) {
-                    if (fwBytesWritten + i < fwBytes.size()) {
-                        bytes[4 + i] = fwBytes.get(fwBytesWritten + i);
-                    } else {
-                        bytes[4 + i] = 0xFF;
-                    }
-                }
-                bytes[4 + PAGE_LEN] = 0x20;
-                device.send(bytes);
-                break;
-            case ReadPage:
-                device.send(new int[]{0x74, (PAGE_LEN >> 8) & 0xFF, PAGE_LEN & 0xFF, 0x46, 0x20});
-                break;
-            case ExitProgMode:
-                device.send(new int[]{0x51, 0x20});
-                break;
+                return 5 + blockLen;
+            default:
+                return 5;
+        }
+    }
+
+    /**
+     * Write the bytes of a command which acts on a single page into packet.
+     * @return the offset in packet following the command.
+     */
+    private int putPageCommand(ActionCode action, int page, byte[] packet, int offset) {
+        switch (action) {
+            case LoadExtendedAddress:
+                // STK_UNIVERSAL carrying the AVR Load Extended Address instruction.
+                return put(packet, offset, 0x56, 0x4D, 0x00, getExtendedAddress(page), 0x00, 0x20);
+            case LoadAddressToVerify:
+            case LoadAddressToWrite:
+            case LoadAddressToCompare:
+                int address = page * (blockLen / 2); // block_len is in bytes, address is in words.
+                return put(packet, offset, 0x55, 0xFF & address, 0xFF & (address >> 8), 0x20);
+            case Program:
+                offset = put(packet, offset, 0x64, (blockLen >> 8) & 0xFF, blockLen & 0xFF, 0x46);
+                firmware.getPage(page, blockLen, packet, offset);
+                return put(packet, offset + blockLen, 0x20);
+            default:
+                return put(packet, offset, 0x74, (blockLen >> 8) & 0xFF, blockLen & 0xFF, 0x46, 0x20);
         }
+    }
 
-        taskPendingResponse = new OpTimeout(messenger);
-        timer.schedule(taskPendingResponse, 1000);
+    private static int put(byte[] packet, int offset, int... bytes) {
+        for (int b : bytes) {
+            packet[offset++] = (byte) b;
+        }
+        return offset;
     }
 }
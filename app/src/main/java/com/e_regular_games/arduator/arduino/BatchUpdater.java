@@ -0,0 +1,239 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * @author S. Ryan Edgar
+ * Upload the same Firmware to many devices, running up to a limited number of uploads at once.
+ * The Firmware is loaded once and shared by every upload. Devices may be added at any time, such
+ * as from ArduinoCommManager.ManagerEvent.onCreate as each one is created, they are uploaded to in
+ * the order added as earlier uploads finish.
+ *
+ * Use BatchUpdater.BatchEvent to receive the status, progress and result of each device and of the
+ * batch as a whole. An upload whose link drops is resumed, up to MAX_RESUMES times, before the
+ * device is counted as failed.
+ */
+public class BatchUpdater {
+    public static class BatchEvent {
+        /**
+         * Called on the upload loop before the upload begins, to configure the updater.
+         */
+        public void onCreateUpdater(ArduinoComm device, ArduinoCommUpdater updater) {
+        }
+
+        public void onDeviceStatus(ArduinoComm device, ArduinoCommUpdater.StatusCode status) {
+        }
+
+        public void onDeviceError(ArduinoComm device, ArduinoCommUpdater.ErrorCode code) {
+        }
+
+        public void onDeviceProgress(ArduinoComm device, ArduinoCommUpdater.Progress progress) {
+        }
+
+        public void onDeviceDone(ArduinoComm device, boolean success, UploadMetrics metrics) {
+        }
+
+        /**
+         * Called after each device is done.
+         * @param remaining devices which are uploading or waiting to.
+         */
+        public void onBatchProgress(int succeeded, int failed, int remaining) {
+        }
+
+        /**
+         * Called whenever every device added so far is done.
+         */
+        public void onBatchComplete(int succeeded, int failed) {
+        }
+    }
+
+    /**
+     * See AndroidUpdaters for an Android application.
+     * @param firmware must already be loaded.
+     * @param parallelism the most uploads to run at once.
+     * @param loop runs every upload, devices deliver their events to it.
+     * @param callbacks where BatchEvent is called, other than onCreateUpdater.
+     */
+    public BatchUpdater(Firmware firmware, int parallelism, EventLoop loop, Executor callbacks) {
+        this.firmware = firmware;
+        this.parallelism = Math.max(1, parallelism);
+        this.loop = loop;
+        this.callbacks = callbacks;
+    }
+
+    public void setOnBatchEvent(BatchEvent event) {
+        this.event = event;
+    }
+
+    /**
+     * Queue device for upload, it begins once fewer than parallelism uploads are running.
+     */
+    public void add(final ArduinoComm device) {
+        device.setEventExecutor(loop);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                queued.add(device);
+                complete = false;
+                startNext();
+            }
+        });
+    }
+
+    /**
+     * Stop the uploads which are running and forget those waiting to begin.
+     */
+    public void cancel() {
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                failed += queued.size();
+                queued.clear();
+                for (ArduinoComm device : running.keySet()) {
+                    resumes.put(device, MAX_RESUMES); // the disconnect is final.
+                    device.disconnect();
+                }
+
+                if (takeCompletion()) {
+                    final int s = succeeded, f = failed;
+                    callbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            event.onBatchComplete(s, f);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private final Firmware firmware;
+    private final int parallelism;
+    private final EventLoop loop;
+    private final Executor callbacks;
+    private BatchEvent event = new BatchEvent();
+    // only used on the loop.
+    private final ArrayDeque<ArduinoComm> queued = new ArrayDeque<>();
+    private final HashMap<ArduinoComm, ArduinoCommUpdater> running = new HashMap<>();
+    private final HashMap<ArduinoComm, Integer> resumes = new HashMap<>();
+    private int succeeded = 0, failed = 0;
+    // onBatchComplete has been called for the devices added so far.
+    private boolean complete = false;
+    private static final int MAX_RESUMES = 3;
+
+    private void startNext() {
+        while (running.size() < parallelism && !queued.isEmpty()) {
+            start(queued.poll());
+        }
+    }
+
+    private void start(final ArduinoComm device) {
+        final ArduinoCommUpdater updater = new ArduinoCommUpdater(device, loop, callbacks);
+        running.put(device, updater);
+
+        updater.setOnStatus(new ArduinoCommUpdater.OnStatus() {
+            @Override
+            public void onError(ArduinoCommUpdater.ErrorCode code) {
+                event.onDeviceError(device, code);
+                finish(device, updater, isConnectError(code));
+            }
+
+            @Override
+            public void onStatus(ArduinoCommUpdater.StatusCode status) {
+                event.onDeviceStatus(device, status);
+                if (status == ArduinoCommUpdater.StatusCode.Complete
+                        || status == ArduinoCommUpdater.StatusCode.Disconnected) {
+                    finish(device, updater, status == ArduinoCommUpdater.StatusCode.Disconnected);
+                }
+            }
+        });
+        updater.setOnProgress(new ArduinoCommUpdater.OnProgress() {
+            @Override
+            public void onProgress(ArduinoCommUpdater.Progress progress) {
+                event.onDeviceProgress(device, progress);
+            }
+        }, 250);
+
+        event.onCreateUpdater(device, updater);
+        updater.upload(firmware);
+    }
+
+    /**
+     * Called on callbacks once the upload to device has ended, by whichever of an error, its
+     * completion or a disconnect is reported first. An upload which can be resumed is resumed
+     * once the link is down, an error only ends it when no disconnect will follow.
+     * @param linkDown the device is not connected, so it may be connected again.
+     */
+    private void finish(final ArduinoComm device, final ArduinoCommUpdater updater, final boolean linkDown) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (running.get(device) != updater) {
+                    return;
+                }
+
+                Integer resumed = resumes.get(device);
+                int attempts = resumed != null ? resumed : 0;
+                if (!updater.success() && updater.canResume() && attempts < MAX_RESUMES) {
+                    if (linkDown) {
+                        resumes.put(device, attempts + 1);
+                        updater.resume(true);
+                    }
+                    return; // an error is followed by the disconnect, see handleError.
+                }
+
+                running.remove(device);
+                resumes.remove(device);
+                updater.release();
+
+                final boolean success = updater.success();
+                if (success) {
+                    succeeded += 1;
+                } else {
+                    failed += 1;
+                }
+                final int s = succeeded, f = failed, remaining = running.size() + queued.size();
+                startNext();
+                final boolean batchDone = takeCompletion();
+
+                callbacks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        event.onDeviceDone(device, success, updater.getMetrics());
+                        event.onBatchProgress(s, f, remaining);
+                        if (batchDone) {
+                            event.onBatchComplete(s, f);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return true once each time every device added is done, when onBatchComplete is due.
+     */
+    private boolean takeCompletion() {
+        if (complete || !running.isEmpty() || !queued.isEmpty()) {
+            return false;
+        }
+        complete = true;
+        return true;
+    }
+
+    /**
+     * @return true if the error means the link never came up, so no disconnect follows it.
+     */
+    private static boolean isConnectError(ArduinoCommUpdater.ErrorCode code) {
+        switch (code) {
+            case Connect:
+            case RemovePairing:
+            case PinRequired:
+            case ServiceIdRequired:
+                return true;
+        }
+        return false;
+    }
+}
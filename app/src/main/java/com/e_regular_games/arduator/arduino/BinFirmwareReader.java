@@ -0,0 +1,43 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author S. Ryan Edgar
+ * Reads a raw binary image, as produced by avr-objcopy -O binary, which holds the bytes of flash
+ * from a base address with no addresses or checksums of its own.
+ */
+public class BinFirmwareReader implements FirmwareReader {
+    /**
+     * @param baseAddress the flash address of the first byte of the file.
+     */
+    public BinFirmwareReader(int baseAddress) {
+        this.baseAddress = baseAddress;
+    }
+
+    @Override
+    public boolean read(InputStream in, Firmware firmware) {
+        byte[] chunk = new byte[CHUNK_LEN];
+        int address = baseAddress;
+        try {
+            try {
+                int read;
+                while ((read = in.read(chunk)) > 0) {
+                    if (!firmware.addData(address, chunk, 0, read)) {
+                        return false;
+                    }
+                    address += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return firmware.fail(Firmware.ErrorCode.FW_FileName);
+        }
+        return true;
+    }
+
+    private final int baseAddress;
+    private static final int CHUNK_LEN = 0x1000;
+}
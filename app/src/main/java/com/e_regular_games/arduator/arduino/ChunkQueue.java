@@ -0,0 +1,74 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.util.ArrayDeque;
+
+/**
+ * @author S. Ryan Edgar
+ * Packets waiting to be written to a link which takes at most a chunk at a time and allows a
+ * single outstanding write, as a BLE characteristic does. Packets are joined across chunk
+ * boundaries so each chunk is as full as it can be. Used on one thread only.
+ */
+class ChunkQueue {
+    /**
+     * @return true if no write was outstanding, the caller must start one with nextChunk.
+     */
+    boolean add(byte[] packet) {
+        packets.add(packet);
+        queued += packet.length;
+        if (writing) {
+            return false;
+        }
+        writing = true;
+        return true;
+    }
+
+    /**
+     * Take the next chunk to write, once the last one was accepted.
+     * @param chunkLen the most bytes the link takes in one write.
+     * @return the chunk, or null if nothing is waiting, which ends the outstanding write.
+     */
+    byte[] nextChunk(int chunkLen) {
+        if (queued == 0) {
+            writing = false;
+            return null;
+        }
+
+        byte[] chunk = new byte[Math.min(chunkLen, queued)];
+        int filled = 0;
+        while (filled < chunk.length) {
+            byte[] packet = packets.peek();
+            int count = Math.min(chunk.length - filled, packet.length - sendOffset);
+            System.arraycopy(packet, sendOffset, chunk, filled, count);
+            filled += count;
+            sendOffset += count;
+            if (sendOffset == packet.length) {
+                packets.poll();
+                sendOffset = 0;
+            }
+        }
+        queued -= chunk.length;
+        return chunk;
+    }
+
+    /**
+     * Forget every packet and the outstanding write, once the link they were meant for is gone.
+     */
+    void clear() {
+        packets.clear();
+        queued = 0;
+        sendOffset = 0;
+        writing = false;
+    }
+
+    /**
+     * @return true while a write is outstanding.
+     */
+    boolean isWriting() {
+        return writing;
+    }
+
+    // sendOffset bytes of the first packet have been written already.
+    private final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+    private int sendOffset = 0, queued = 0;
+    private boolean writing = false;
+}
@@ -0,0 +1,135 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.util.Arrays;
+
+/**
+ * @author S. Ryan Edgar
+ * Describes the microcontroller behind the bootloader: its signature, the size of its flash and
+ * of a flash page, and the device parameters sent to the bootloader before programming. The
+ * profiles provided assume an STK500v1 bootloader such as Optiboot is installed, which ignores
+ * the device parameters but expects them to be sent.
+ *
+ * The block size is the number of bytes sent with each ProgPage or ReadPage command, a multiple
+ * of the page size. Larger blocks mean fewer commands, but a block may only be larger than a page
+ * if the bootloader writes every page in it. Optiboot writes only the page at the loaded address,
+ * so keep the block size equal to the page size unless the bootloader is known to support it.
+ */
+public class DeviceProfile {
+    public static final DeviceProfile ATMEGA328P = new DeviceProfile("ATmega328P",
+            new int[]{0x1E, 0x95, 0x0F}, 0x8000, 0x80, 0x400, 0x86, new int[]{0x05, 0x04, 0xD7, 0xC2, 0x00});
+    public static final DeviceProfile ATMEGA32U4 = new DeviceProfile("ATmega32U4",
+            new int[]{0x1E, 0x95, 0x87}, 0x8000, 0x80, 0x400, 0x86, new int[]{0x05, 0x04, 0xD7, 0xA0, 0x00});
+    public static final DeviceProfile ATMEGA2560 = new DeviceProfile("ATmega2560",
+            new int[]{0x1E, 0x98, 0x01}, 0x40000, 0x100, 0x1000, 0xB2, new int[]{0x05, 0x08, 0xD7, 0xA0, 0x00});
+
+    /**
+     * @param name displayed to the user.
+     * @param signature the 3 signature bytes read from the device.
+     * @param flashSize in bytes.
+     * @param pageSize in bytes, a power of two.
+     * @param eepromSize in bytes.
+     * @param deviceCode the STK500 device code sent with SetDevice.
+     * @param extParams the parameters sent with SetDeviceExt, starting with their count.
+     */
+    public DeviceProfile(String name, int[] signature, int flashSize, int pageSize, int eepromSize,
+                         int deviceCode, int[] extParams) {
+        this(name, signature, flashSize, pageSize, eepromSize, deviceCode, extParams, pageSize);
+    }
+
+    private DeviceProfile(String name, int[] signature, int flashSize, int pageSize, int eepromSize,
+                          int deviceCode, int[] extParams, int blockSize) {
+        if (signature.length != 3 || pageSize <= 0 || (pageSize & (pageSize - 1)) != 0
+                || blockSize <= 0 || blockSize % pageSize != 0 || flashSize % blockSize != 0) {
+            throw new IllegalArgumentException("Invalid device profile " + name);
+        }
+
+        this.name = name;
+        this.signature = Arrays.copyOf(signature, 3);
+        this.flashSize = flashSize;
+        this.pageSize = pageSize;
+        this.eepromSize = eepromSize;
+        this.deviceCode = deviceCode;
+        this.extParams = Arrays.copyOf(extParams, extParams.length);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param blockSize bytes sent per ProgPage or ReadPage command, a multiple of the page size.
+     * @return a copy of this profile which uses the block size.
+     */
+    public DeviceProfile withBlockSize(int blockSize) {
+        return new DeviceProfile(name, signature, flashSize, pageSize, eepromSize, deviceCode, extParams, blockSize);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the 3 signature bytes read from the device.
+     */
+    public int[] getSignature() {
+        return Arrays.copyOf(signature, 3);
+    }
+
+    public int getFlashSize() {
+        return flashSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * The LoadAddress command holds a 16 bit word address, flash beyond 128KB also needs the
+     * extended address byte to be loaded.
+     */
+    public boolean needsExtendedAddress() {
+        return flashSize > 0x20000;
+    }
+
+    /**
+     * @param response a ReadSignature response, the signature bytes start at offset 1.
+     */
+    boolean matchesSignature(ResponseBuffer response) {
+        for (int i = 0; i < 3; i += 1) {
+            if (response.get(1 + i) != (byte) signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean matchesSignature(int[] signature) {
+        return Arrays.equals(this.signature, signature);
+    }
+
+    /**
+     * @return the STK500 SetDevice command.
+     */
+    int[] getProgParams() {
+        return new int[]{0x42, deviceCode, 0x00, 0x00, 0x01, 0x01, 0x01, 0x01, 0x03, 0xFF, 0xFF, 0xFF, 0xFF,
+                (pageSize >> 8) & 0xFF, pageSize & 0xFF, (eepromSize >> 8) & 0xFF, eepromSize & 0xFF,
+                (flashSize >> 24) & 0xFF, (flashSize >> 16) & 0xFF, (flashSize >> 8) & 0xFF, flashSize & 0xFF, 0x20};
+    }
+
+    /**
+     * @return the STK500 SetDeviceExt command.
+     */
+    int[] getExProgParams() {
+        int[] cmd = new int[extParams.length + 2];
+        cmd[0] = 0x45;
+        System.arraycopy(extParams, 0, cmd, 1, extParams.length);
+        cmd[cmd.length - 1] = 0x20;
+        return cmd;
+    }
+
+    private final String name;
+    private final int[] signature;
+    private final int flashSize, pageSize, eepromSize, deviceCode, blockSize;
+    private final int[] extParams;
+}
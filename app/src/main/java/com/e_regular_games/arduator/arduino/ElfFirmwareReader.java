@@ -0,0 +1,99 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * @author S. Ryan Edgar
+ * Reads the ELF file produced by avr-gcc, without converting it to HEX first. The image is built
+ * from the loadable (PT_LOAD) segments at their physical addresses, which for .data is where its
+ * initial values are stored in flash. avr-gcc places RAM, EEPROM and fuses at 0x800000 and above,
+ * those segments are not flash and are skipped.
+ *
+ * https://refspecs.linuxfoundation.org/elf/elf.pdf
+ */
+public class ElfFirmwareReader implements FirmwareReader {
+    static final byte[] MAGIC = {0x7F, 'E', 'L', 'F'};
+
+    @Override
+    public boolean read(InputStream in, Firmware firmware) {
+        byte[] file;
+        try {
+            file = Firmware.readAll(in);
+        } catch (IOException e) {
+            return firmware.fail(Firmware.ErrorCode.FW_FileName);
+        }
+
+        ArrayList<int[]> segments = getSegments(file);
+        if (segments == null) {
+            return firmware.fail(Firmware.ErrorCode.FW_Format);
+        }
+
+        for (int[] s : segments) {
+            if (!firmware.addData(s[0], file, s[1], s[2])) {
+                return false;
+            }
+        }
+        firmware.setEntryPoint(ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN).getInt(0x18));
+        return true;
+    }
+
+    private static final int CLASS_32 = 1, DATA_LSB = 1, PT_LOAD = 1, EM_AVR = 83;
+    private static final int HEADER_LEN = 0x34, MIN_PHENT_LEN = 0x20;
+    private static final int NON_FLASH_ADDRESS = 0x800000;
+
+    /**
+     * @return the flash segments as (address, file offset, length) in address order, null if the
+     * file is not a valid 32 bit little endian ELF file for AVR. The physical addresses of another
+     * machine, such as an ARM board, would be written to the wrong places in flash.
+     */
+    private static ArrayList<int[]> getSegments(byte[] file) {
+        if (file.length < HEADER_LEN || file[4] != CLASS_32 || file[5] != DATA_LSB) {
+            return null;
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (file[i] != MAGIC[i]) {
+                return null;
+            }
+        }
+
+        ByteBuffer elf = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        if ((0xFFFF & elf.getShort(0x12)) != EM_AVR) {
+            return null;
+        }
+
+        long phOff = 0xFFFFFFFFL & elf.getInt(0x1C);
+        int phEntLen = 0xFFFF & elf.getShort(0x2A), phCount = 0xFFFF & elf.getShort(0x2C);
+        if (phEntLen < MIN_PHENT_LEN || phOff + (long) phEntLen * phCount > file.length) {
+            return null;
+        }
+
+        ArrayList<int[]> segments = new ArrayList<>();
+        for (int i = 0; i < phCount; i += 1) {
+            int ph = (int) phOff + i * phEntLen;
+            long offset = 0xFFFFFFFFL & elf.getInt(ph + 0x04);
+            long address = 0xFFFFFFFFL & elf.getInt(ph + 0x0C);
+            long length = 0xFFFFFFFFL & elf.getInt(ph + 0x10);
+            if (elf.getInt(ph) != PT_LOAD || length == 0 || address >= NON_FLASH_ADDRESS) {
+                continue;
+            }
+            if (offset + length > file.length) {
+                return null;
+            }
+            segments.add(new int[]{(int) address, (int) offset, (int) length});
+        }
+
+        Collections.sort(segments, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        return segments;
+    }
+}
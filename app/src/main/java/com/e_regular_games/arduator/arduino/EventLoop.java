@@ -0,0 +1,24 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.util.concurrent.Executor;
+
+/**
+ * @author S. Ryan Edgar
+ * A thread which runs tasks one at a time, in the order they were posted. ArduinoCommUpdater
+ * keeps all of its state on one EventLoop, so it never needs to lock. The methods match those of
+ * android.os.Handler, see HandlerEventLoop for Android and ExecutorEventLoop for anywhere else.
+ */
+public interface EventLoop extends Executor {
+    void post(Runnable task);
+
+    /**
+     * @param delayMs milliseconds to wait before running the task.
+     */
+    void postDelayed(Runnable task, long delayMs);
+
+    /**
+     * Remove every pending post of the task. Called from the loop itself, the task is then
+     * guaranteed not to run unless it is posted again.
+     */
+    void removeCallbacks(Runnable task);
+}
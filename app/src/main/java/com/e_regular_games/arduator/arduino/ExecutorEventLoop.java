@@ -0,0 +1,103 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author S. Ryan Edgar
+ * An EventLoop on a thread of its own, which needs nothing from Android. For running the updater
+ * in unit tests or a desktop program. Call shutdown once it is no longer needed.
+ */
+public class ExecutorEventLoop implements EventLoop {
+    /**
+     * @param name of the thread the tasks run on.
+     */
+    public ExecutorEventLoop(final String name) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        post(task);
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public synchronized void postDelayed(final Runnable task, long delayMs) {
+        final Runnable[] self = new Runnable[1];
+        self[0] = new Runnable() {
+            @Override
+            public void run() {
+                if (forget(task, self[0])) {
+                    task.run();
+                }
+            }
+        };
+
+        List<Runnable> posts = pending.get(task);
+        if (posts == null) {
+            posts = new ArrayList<>();
+            pending.put(task, posts);
+        }
+        posts.add(self[0]);
+        futures.put(self[0], executor.schedule(self[0], delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable task) {
+        List<Runnable> posts = pending.remove(task);
+        if (posts == null) {
+            return;
+        }
+
+        for (Runnable post : posts) {
+            ScheduledFuture<?> f = futures.remove(post);
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private final ScheduledExecutorService executor;
+    // the posts of each task which have not run yet, so they can be removed.
+    private final Map<Runnable, List<Runnable>> pending = new HashMap<>();
+    private final Map<Runnable, ScheduledFuture<?>> futures = new HashMap<>();
+
+    /**
+     * @return false if the post was removed before it could run.
+     */
+    private synchronized boolean forget(Runnable task, Runnable post) {
+        if (futures.remove(post) == null) {
+            return false;
+        }
+
+        List<Runnable> posts = pending.get(task);
+        posts.remove(post);
+        if (posts.isEmpty()) {
+            pending.remove(task);
+        }
+        return true;
+    }
+}
@@ -1,17 +1,31 @@
 package com.e_regular_games.arduator.arduino;
 
-import android.app.Activity;
-
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * @author S. Ryan Edgar
  * Reads an input stream which provides intel based hex codes for Arduino Firmware. It verifies
- * the checksum of each line during load.
+ * the checksum of each line during load. Data, end of file, extended segment and linear address
+ * and start address records are supported.
+ *
+ * The program is sparse, it is kept as a list of merged address ranges which hold data, each
+ * with a byte array of its own data, so the memory used follows the length of the program rather
+ * than its highest address. Bytes outside of every range read as 0xFF, the value of erased
+ * flash. Use nextPage to find the pages which hold data and getPage to copy a page of the program
+ * into a caller owned buffer.
+ *
+ * Records must not overlap and must be in ascending address order, as produced by avr-objcopy,
+ * so any byte below the end of the most recent record is final. Another thread may read those
+ * pages while load is still running, see FirmwareStream.
+ *
+ * Other formats are read into the same image by a FirmwareReader, see loadAny.
  *
  * https://en.wikipedia.org/wiki/Intel_HEX
  */
@@ -19,63 +33,180 @@ public class Firmware {
     public Firmware() {}
 
     /**
-     * Read the firmware from the provided stream and save it in this object.
+     * Read the firmware from the provided stream and save it in this object. The stream is decoded
+     * a chunk at a time into a reusable line buffer, each record is decoded in place and its
+     * checksum is verified in the same pass, so no objects are created per record or per byte.
      * @param in Stream containing the data of the firmware file.
      * @return true, if the file is valid, else false. If the file is invalid, getLastError will
-     * indicate what went wrong.
+     * indicate what went wrong and getErrorLine the line on which it happened.
      */
     public boolean load(InputStream in) {
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-            String line;
-            boolean firstLine = true;
-            int nextAddress = 0;
-            while ((line = reader.readLine()) != null) {
-                if (line.charAt(0) != ':') {
-                    lastError = ErrorCode.FW_StartCode;
-                    return false;
-                }
-
-                int dataLen = toInt(line.substring(1, 3));
-                int lineLen = 2 * dataLen;
-                int address = toInt(line.substring(3, 7));
-                int checkSum = toInt(line.substring(1 + lineLen + 8, 1 + lineLen + 8 + 2));
-                if (dataLen == 0 && address == 0 && toInt(line.substring(7, 8)) == 0) {
-                    //last line
-                } else if (firstLine) {
-                    startAddress = address;
-                } else if (address != nextAddress) {
-                    lastError = ErrorCode.FW_ContiguousAddressing;
-                    return false;
-                }
+        byte[] chunk = new byte[CHUNK_LEN];
+        byte[] line = new byte[MAX_LINE_LEN];
+        int lineLen = 0;
+        startRecords();
 
-                if (!verifyChecksum(line.substring(1, 1 + lineLen + 8), checkSum)) {
-                    lastError = ErrorCode.FW_CheckSum;
-                    return false;
-                }
+        try {
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                for (int i = 0; i < read; i += 1) {
+                    byte c = chunk[i];
+                    if (c == '\n' || c == '\r') {
+                        if (lineLen > 0 && !parseRecord(line, lineLen)) {
+                            return false;
+                        }
 
-                for (int i = 0; i < dataLen; i += 1) {
-                    bytes.add(toInt(line.substring(9 + 2 * i, 9 + 2 * i + 2)));
+                        lineLen = 0;
+                        if (c == '\n') {
+                            lineNumber += 1;
+                        }
+                    } else if (lineLen < MAX_LINE_LEN) {
+                        line[lineLen] = c;
+                        lineLen += 1;
+                    } else {
+                        return fail(ErrorCode.FW_Format);
+                    }
                 }
+            }
 
-                firstLine = false;
-                nextAddress = address + dataLen;
+            if (lineLen > 0 && !parseRecord(line, lineLen)) {
+                return false;
             }
 
             in.close();
+            trimLastRange();
         } catch (IOException e) {
-            lastError = ErrorCode.FW_FileName;
-            return false;
+            return fail(ErrorCode.FW_FileName);
+        }
+
+        return true;
+    }
+
+    /**
+     * Read firmware of any supported format, chosen by the first bytes of the stream: ELF if it
+     * starts with the ELF magic, Intel HEX if the first bytes are text, otherwise a raw binary
+     * image starting at address 0. An AVR image starts with its vector table, which is not text.
+     * @param in Stream containing the data of the firmware file.
+     * @return true, if the file is valid, else false and getError indicates why.
+     */
+    public boolean loadAny(InputStream in) {
+        BufferedInputStream buffered = new BufferedInputStream(in, CHUNK_LEN);
+        FirmwareReader reader;
+        try {
+            reader = detect(buffered);
+        } catch (IOException e) {
+            return fail(ErrorCode.FW_FileName);
+        }
+        return load(buffered, reader);
+    }
+
+    /**
+     * @param in Stream containing the data of the firmware file.
+     * @param reader the format of the file.
+     * @return true, if the file is valid, else false and getError indicates why.
+     */
+    public boolean load(InputStream in, FirmwareReader reader) {
+        boolean valid = reader.read(in, this);
+        trimLastRange();
+        return valid;
+    }
+
+    /**
+     * Load firmware saved by writeContainer, by memory mapping the file. The pages are not decoded
+     * nor copied, getPage reads them from the mapping, only the CRC of each page is checked.
+     * @param file a container written by writeContainer.
+     * @return true, if the container is valid, else false and getError indicates why.
+     */
+    public boolean loadContainer(File file) {
+        FirmwareContainer c;
+        try {
+            c = FirmwareContainer.map(file);
+        } catch (IOException e) {
+            return fail(ErrorCode.FW_FileName);
         }
 
+        if (c.getError() != null) {
+            return fail(c.getError());
+        }
+
+        int[] ranges = c.getRanges();
+        synchronized (this) {
+            rangeCount = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                addRange(ranges[i], ranges[i + 1]);
+                rangeData[rangeCount - 1] = EMPTY; // the data stays in the container.
+            }
+        }
+        entryPoint = c.getEntryPoint();
+        container = c;
+        loadedAddress = getEndAddress(); // after container, see getPage.
         return true;
     }
 
-    public enum ErrorCode {FW_FileName, FW_CheckSum, FW_StartCode, FW_ContiguousAddressing}
+    /**
+     * Save the loaded firmware as a compact binary container, see loadContainer. It holds each
+     * page which holds data, with a CRC of each page and the signature of the target.
+     * @param profile the target, its page size is the page size of the container. Null if the
+     *                target is not known, the page size is then 128 bytes.
+     */
+    public void writeContainer(OutputStream out, DeviceProfile profile) throws IOException {
+        FirmwareContainer.write(this, profile, out);
+    }
+
+    /**
+     * @return the signature of the device the firmware was saved for by writeContainer, or null if
+     * it was not loaded from a container or the target was not known.
+     */
+    public int[] getTargetSignature() {
+        return container != null ? container.getSignature() : null;
+    }
+
+    /**
+     * A range of flash addresses, in bytes, which hold data. end is exclusive.
+     */
+    public static class Range {
+        public final int start, end;
+
+        public Range(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Notified on the loading thread each time a data record is added. Every byte below address
+     * is final.
+     */
+    interface LoadListener {
+        void onLoaded(int address);
+    }
+
+    void setLoadListener(LoadListener listener) {
+        loadListener = listener;
+    }
+
+    public enum ErrorCode {FW_FileName, FW_CheckSum, FW_StartCode, FW_ContiguousAddressing, FW_Format, FW_AddressRange}
+
+    /**
+     * @return the lowest address, in bytes, which holds data.
+     */
+    public synchronized int getStartAddress() {
+        return rangeCount > 0 ? rangeStarts[0] : 0;
+    }
+
+    /**
+     * @return one past the highest address, in bytes, which holds data.
+     */
+    public synchronized int getEndAddress() {
+        return rangeCount > 0 ? rangeEnds[rangeCount - 1] : 0;
+    }
 
-    public int getStartAddress() {
-        return startAddress;
+    /**
+     * @return the execution start address from a start segment or start linear address record,
+     * or -1 if the file did not have one. A segment start address is returned as CS * 16 + IP.
+     */
+    public int getEntryPoint() {
+        return entryPoint;
     }
 
     /**
@@ -86,35 +217,444 @@ public class Firmware {
     }
 
     /**
-     * @return each byte of the program as an integer, to avoid negative number issues. Only the
-     * lowest 8bits of each integer are valid, the rest should be ignored.
+     * @return the line of the file, starting from 1, which caused load to return false.
+     */
+    public int getErrorLine() {
+        return errorLine;
+    }
+
+    /**
+     * @return the number of bytes in the program, not counting any gaps between ranges.
+     */
+    public synchronized int length() {
+        int len = 0;
+        for (int i = 0; i < rangeCount; i += 1) {
+            len += rangeEnds[i] - rangeStarts[i];
+        }
+        return len;
+    }
+
+    /**
+     * @return the merged address ranges which hold data, in ascending order.
+     */
+    public synchronized ArrayList<Range> getRanges() {
+        ArrayList<Range> ranges = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount; i += 1) {
+            ranges.add(new Range(rangeStarts[i], rangeEnds[i]));
+        }
+        return ranges;
+    }
+
+    /**
+     * @param address flash address of the byte.
+     * @return the byte as an integer in the range 0 to 255, or 0xFF if the address holds no data.
+     */
+    public int getByte(int address) {
+        if (address < 0 || address >= loadedAddress) {
+            return 0xFF;
+        } else if (container != null) {
+            byte[] b = {(byte) 0xFF};
+            container.copy(address, 1, b, 0);
+            return 0xFF & b[0];
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < rangeCount && rangeStarts[i] <= address; i += 1) {
+                if (address < rangeEnds[i]) {
+                    return 0xFF & rangeData[i][address - rangeStarts[i]];
+                }
+            }
+        }
+        return 0xFF;
+    }
+
+    /**
+     * @param pageLen the length of a page in bytes.
+     * @return the number of pages which hold at least one byte of data.
      */
-    public ArrayList<Integer> getBytes() {
-        return bytes;
+    public int getPageCount(int pageLen) {
+        int count = 0;
+        for (int page = nextPage(0, pageLen); page >= 0; page = nextPage(page + 1, pageLen)) {
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * @param fromPage index of the first page to consider.
+     * @param pageLen the length of a page in bytes.
+     * @return the index of the first page at or after fromPage which holds data, or -1 if there
+     * is none. Page n begins at flash address n * pageLen.
+     */
+    public synchronized int nextPage(int fromPage, int pageLen) {
+        int from = fromPage * pageLen;
+        for (int i = 0; i < rangeCount; i += 1) {
+            if (rangeEnds[i] > from) {
+                return Math.max(fromPage, rangeStarts[i] / pageLen);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copy a page of the program into dst. The length of dst is the page length. Any part of the
+     * page which holds no data is filled with 0xFF, the value of erased flash.
+     * @param pageIndex index of the page, page n begins at flash address n * dst.length.
+     * @param dst buffer to receive the page.
+     * @return the number of bytes of the page which are within the loaded part of the image.
+     */
+    public int getPage(int pageIndex, byte[] dst) {
+        return getPage(pageIndex, dst.length, dst, 0);
+    }
+
+    /**
+     * Copy a page of the program into part of dst, such as the body of a packet.
+     * @param pageIndex index of the page, page n begins at flash address n * pageLen.
+     * @param pageLen the length of a page in bytes.
+     * @param dst buffer to receive the page.
+     * @param offset where in dst the page begins.
+     * @return the number of bytes of the page which are within the loaded part of the image.
+     */
+    public int getPage(int pageIndex, int pageLen, byte[] dst, int offset) {
+        int address = pageIndex * pageLen;
+        Arrays.fill(dst, offset, offset + pageLen, (byte) 0xFF);
+        if (container != null) {
+            int count = Math.max(0, Math.min(pageLen, loadedAddress - address));
+            container.copy(address, count, dst, offset);
+            return count;
+        }
+
+        // under the lock addData holds, so the ranges and their data are read together.
+        synchronized (this) {
+            int end = address + pageLen;
+            for (int i = 0; i < rangeCount && rangeStarts[i] < end; i += 1) {
+                int from = Math.max(address, rangeStarts[i]), to = Math.min(end, rangeEnds[i]);
+                if (from < to) {
+                    System.arraycopy(rangeData[i], from - rangeStarts[i], dst, offset + from - address, to - from);
+                }
+            }
+            return Math.max(0, Math.min(pageLen, loadedAddress - address));
+        }
+    }
+
+    /**
+     * @param pageIndex index of the page, page n begins at flash address n * page.length.
+     * @param page the contents of the page, from getPage.
+     * @return the hash of the page as FlashCache stores it, read from the container when it was
+     * saved with the same page length.
+     */
+    public long getPageHash(int pageIndex, byte[] page) {
+        if (container != null && container.getPageSize() == page.length) {
+            long crc = container.getPageCrc(pageIndex);
+            if (crc != FlashCache.UNKNOWN) {
+                return crc;
+            }
+        }
+        return FlashCache.hash(page);
+    }
+
+    /**
+     * @return the bytes held for the image, see FirmwareCache.
+     */
+    synchronized int getMemorySize() {
+        int size = 0;
+        for (int i = 0; i < rangeCount; i += 1) {
+            size += rangeData[i].length;
+        }
+        return size;
     }
 
-    private int startAddress = 0;
     private ErrorCode lastError;
-    private ArrayList<Integer> bytes = new ArrayList<>();
+    // set once loadContainer succeeds, the pages are read from it instead of rangeData.
+    private volatile FirmwareContainer container;
+    private volatile int loadedAddress = 0;
+    // the data of range i, from rangeStarts[i], may be longer than the range while it grows.
+    private byte[][] rangeData = new byte[4][];
+    private int[] rangeStarts = new int[4], rangeEnds = new int[4];
+    private int rangeCount = 0;
+    private int baseAddress = 0, entryPoint = -1;
+    private LoadListener loadListener;
+    private int lineNumber = 0, errorLine = 0;
+    private boolean endOfFile = false;
+    private static final int INITIAL_CAPACITY = 0x1000;
+    private static final byte[] EMPTY = new byte[0];
+    private static final int MAX_ADDRESS = 0x100000; // well beyond the flash of any AVR.
+    private static final int CHUNK_LEN = 0x1000;
+    private static final int MIN_LINE_LEN = 11; // ':' + 2 len + 4 address + 2 type + 2 checksum
+    private static final int MAX_LINE_LEN = MIN_LINE_LEN + 2 * 0xFF;
+    private static final int RECORD_DATA = 0x00, RECORD_EOF = 0x01, RECORD_EXT_SEGMENT = 0x02,
+            RECORD_START_SEGMENT = 0x03, RECORD_EXT_LINEAR = 0x04, RECORD_START_LINEAR = 0x05;
 
-    private boolean verifyChecksum(String lineWithoutSum, int sum) {
-        if (lineWithoutSum.length() % 2 == 1) {
+    /**
+     * Grow the data of the last range to hold at least length bytes, doubling it as the range
+     * grows one record at a time.
+     */
+    private void ensureCapacity(int length) {
+        byte[] data = rangeData[rangeCount - 1];
+        if (length > data.length) {
+            rangeData[rangeCount - 1] = Arrays.copyOf(data, Math.max(length, Math.max(2 * data.length, INITIAL_CAPACITY)));
+        }
+    }
+
+    /**
+     * Drop the room the last range had to grow, once no more data will be added to it.
+     */
+    private synchronized void trimLastRange() {
+        int last = rangeCount - 1;
+        if (last >= 0 && rangeData[last].length > rangeEnds[last] - rangeStarts[last]) {
+            rangeData[last] = Arrays.copyOf(rangeData[last], rangeEnds[last] - rangeStarts[last]);
+        }
+    }
+
+    private synchronized boolean addRange(int start, int end) {
+        if (rangeCount > 0 && start < rangeEnds[rangeCount - 1]) {
             return false;
         }
 
-        int runningSum = 0;
-        for (int i = 0; i < lineWithoutSum.length(); i += 2) {
-            runningSum += toInt(lineWithoutSum.substring(i, i + 2));
+        if (rangeCount > 0 && start == rangeEnds[rangeCount - 1]) {
+            rangeEnds[rangeCount - 1] = end;
+            return true;
+        }
+
+        if (rangeCount == rangeStarts.length) {
+            rangeStarts = Arrays.copyOf(rangeStarts, 2 * rangeCount);
+            rangeEnds = Arrays.copyOf(rangeEnds, 2 * rangeCount);
+            rangeData = Arrays.copyOf(rangeData, 2 * rangeCount);
+        }
+        trimLastRange(); // the previous range is complete.
+        rangeStarts[rangeCount] = start;
+        rangeEnds[rangeCount] = end;
+        rangeData[rangeCount] = EMPTY;
+        rangeCount += 1;
+        return true;
+    }
+
+    private static final int DETECT_LEN = 0x40;
+
+    /**
+     * Choose the reader for the stream from its first bytes, in is reset to where it started.
+     */
+    private static FirmwareReader detect(BufferedInputStream in) throws IOException {
+        byte[] head = new byte[DETECT_LEN];
+        in.mark(DETECT_LEN);
+        int len = 0, read;
+        while (len < DETECT_LEN && (read = in.read(head, len, DETECT_LEN - len)) > 0) {
+            len += read;
+        }
+        in.reset();
+
+        boolean elf = len >= ElfFirmwareReader.MAGIC.length;
+        for (int i = 0; elf && i < ElfFirmwareReader.MAGIC.length; i += 1) {
+            elf = head[i] == ElfFirmwareReader.MAGIC[i];
+        }
+        if (elf) {
+            return new ElfFirmwareReader();
         }
 
-        return sum == (0xFF & (0x100 - runningSum));
+        // text is read as HEX, so a text file which is not HEX fails rather than being uploaded.
+        for (int i = 0; i < len; i += 1) {
+            if ((head[i] < 0x20 || head[i] > 0x7E) && !Character.isWhitespace(head[i])) {
+                return new BinFirmwareReader(0);
+            }
+        }
+        return new HexFirmwareReader();
     }
 
-    private int toInt(String hex) {
-        if ((hex.length() % 2) == 1) {
-            return 0;
+    /**
+     * Decode and apply a single record, see decodeRecord and applyRecord.
+     * @return false if the record is invalid, lastError is set.
+     */
+    private boolean parseRecord(byte[] line, int len) {
+        ErrorCode err = decodeRecord(line, 0, len);
+        return err == null ? applyRecord(line, 0) : fail(err);
+    }
+
+    /**
+     * Decode a single record in place and verify its checksum, without changing the image, so
+     * records may be decoded on any thread. The hex pair at line[offset + 1 + 2i] is written to
+     * line[offset + i], which is always at or before the characters still to be read.
+     * @param line characters of the record, without the line ending, from offset.
+     * @param len number of characters in the record.
+     * @return null if the record is valid, else why it is not.
+     */
+    static ErrorCode decodeRecord(byte[] line, int offset, int len) {
+        if (len > MAX_LINE_LEN) {
+            return ErrorCode.FW_Format;
+        }
+
+        if (line[offset] != ':') {
+            return ErrorCode.FW_StartCode;
+        }
+
+        if (len % 2 == 0 || len < MIN_LINE_LEN) {
+            return ErrorCode.FW_Format;
+        }
+
+        int recordLen = (len - 1) / 2;
+        int sum = 0;
+        for (int i = 0; i < recordLen; i += 1) {
+            int hi = HEX_VALUES[0xFF & line[offset + 1 + 2 * i]];
+            int lo = HEX_VALUES[0xFF & line[offset + 2 + 2 * i]];
+            if ((hi | lo) < 0) {
+                return ErrorCode.FW_Format;
+            }
+
+            line[offset + i] = (byte) ((hi << 4) | lo);
+            sum += line[offset + i];
+        }
+
+        if (recordLen != (0xFF & line[offset]) + 5) {
+            return ErrorCode.FW_Format;
         }
 
-        return Integer.parseInt(hex, 16);
+        if ((sum & 0xFF) != 0) {
+            return ErrorCode.FW_CheckSum;
+        }
+        return null;
+    }
+
+    /**
+     * Apply a record decoded by decodeRecord to the image, records must be applied in file order.
+     * @param record the decoded record from offset.
+     * @return false if the record is invalid, lastError is set.
+     */
+    private boolean applyRecord(byte[] record, int offset) {
+        int dataLen = 0xFF & record[offset];
+        int address = ((0xFF & record[offset + 1]) << 8) | (0xFF & record[offset + 2]);
+        int type = 0xFF & record[offset + 3];
+        int data = offset + 4;
+        if (endOfFile) {
+            return true;
+        }
+
+        switch (type) {
+            case RECORD_DATA:
+                break;
+            case RECORD_EOF:
+                endOfFile = true;
+                return true;
+            case RECORD_EXT_SEGMENT:
+            case RECORD_EXT_LINEAR:
+                if (dataLen != 2) {
+                    return fail(ErrorCode.FW_Format);
+                }
+                int value = ((0xFF & record[data]) << 8) | (0xFF & record[data + 1]);
+                baseAddress = type == RECORD_EXT_SEGMENT ? value << 4 : value << 16;
+                return true;
+            case RECORD_START_SEGMENT:
+                if (dataLen != 4) {
+                    return fail(ErrorCode.FW_Format);
+                }
+                int cs = ((0xFF & record[data]) << 8) | (0xFF & record[data + 1]);
+                int ip = ((0xFF & record[data + 2]) << 8) | (0xFF & record[data + 3]);
+                entryPoint = (cs << 4) + ip;
+                return true;
+            case RECORD_START_LINEAR:
+                if (dataLen != 4) {
+                    return fail(ErrorCode.FW_Format);
+                }
+                entryPoint = ((0xFF & record[data]) << 24) | ((0xFF & record[data + 1]) << 16)
+                        | ((0xFF & record[data + 2]) << 8) | (0xFF & record[data + 3]);
+                return true;
+            default:
+                return fail(ErrorCode.FW_Format);
+        }
+
+        if (dataLen == 0) {
+            return true;
+        }
+
+        return addData(baseAddress + address, record, data, dataLen);
+    }
+
+    /**
+     * Reset the state carried between records, before the first record of a file is applied.
+     */
+    void startRecords() {
+        lineNumber = 1;
+        baseAddress = 0;
+        endOfFile = false;
+    }
+
+    /**
+     * Apply a record decoded by decodeRecord, for a reader which decodes records itself.
+     * @param line the line of the file which held the record, reported if it is invalid.
+     * @return false if the record is invalid, lastError is set.
+     */
+    boolean addRecord(byte[] record, int offset, int line) {
+        lineNumber = line;
+        return applyRecord(record, offset);
+    }
+
+    /**
+     * Add data at address, which must be above all of the data added before it. Used by each
+     * FirmwareReader to build the same image.
+     * @return false if the data is invalid, lastError is set.
+     */
+    boolean addData(int address, byte[] src, int offset, int len) {
+        if (address < 0 || address + len > MAX_ADDRESS) {
+            return fail(ErrorCode.FW_AddressRange);
+        }
+
+        synchronized (this) {
+            if (!addRange(address, address + len)) {
+                return fail(ErrorCode.FW_ContiguousAddressing);
+            }
+
+            int at = address - rangeStarts[rangeCount - 1];
+            ensureCapacity(at + len);
+            System.arraycopy(src, offset, rangeData[rangeCount - 1], at, len);
+            loadedAddress = address + len;
+        }
+
+        if (loadListener != null) {
+            loadListener.onLoaded(loadedAddress);
+        }
+
+        return true;
+    }
+
+    void setEntryPoint(int address) {
+        entryPoint = address;
+    }
+
+    boolean fail(ErrorCode err) {
+        lastError = err;
+        errorLine = lineNumber;
+        return false;
+    }
+
+    boolean fail(ErrorCode err, int line) {
+        lineNumber = line;
+        return fail(err);
+    }
+
+    /**
+     * @return every byte of in, which is closed.
+     */
+    static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(CHUNK_LEN, in.available()));
+            byte[] chunk = new byte[CHUNK_LEN];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final byte[] HEX_VALUES = new byte[256];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i += 1) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i += 1) {
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+        }
     }
 }
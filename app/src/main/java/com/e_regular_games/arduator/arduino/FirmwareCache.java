@@ -0,0 +1,272 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author S. Ryan Edgar
+ * Keeps recently loaded Firmware, keyed by where it came from (such as its Uri) and a SHA-256 hash
+ * of the file, so uploading the same file again does not parse it again. The hash decides which
+ * image is flashed, so unlike a checksum two different files will not share it. A file which
+ * changed under the same key is parsed again. The least recently used Firmware is dropped once the
+ * cached images hold more than the configured number of bytes.
+ *
+ * Optionally each image is also saved in a directory as a binary container, see
+ * Firmware.writeContainer, named by the hash of the file. After the application restarts the
+ * container is memory mapped instead of parsing the file again. Mapped images are not held on the
+ * heap and do not count towards the bytes cached. The directory has a budget of its own, the least
+ * recently used containers are deleted whenever another is saved and they hold more than it.
+ *
+ * Firmware returned by the cache is shared, it may be uploaded to any number of devices but must
+ * not be loaded again.
+ */
+public class FirmwareCache {
+    /**
+     * @param maxBytes the most bytes of decoded images to keep.
+     */
+    public FirmwareCache(int maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * @param maxBytes the most bytes of decoded images to keep.
+     * @param dir where images are saved, such as a directory under Context.getCacheDir(). It holds
+     *            at most DEFAULT_MAX_SAVED_BYTES of them.
+     */
+    public FirmwareCache(int maxBytes, File dir) {
+        this(maxBytes, dir, DEFAULT_MAX_SAVED_BYTES);
+    }
+
+    /**
+     * @param maxBytes the most bytes of decoded images to keep.
+     * @param dir where images are saved, such as a directory under Context.getCacheDir().
+     * @param maxSavedBytes the most bytes of containers to keep in dir, the one saved last is
+     *                      always kept.
+     */
+    public FirmwareCache(int maxBytes, File dir, long maxSavedBytes) {
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+        this.maxSavedBytes = maxSavedBytes;
+    }
+
+
+    /**
+     * Read the file from in, and return the Firmware it holds. The file is parsed on the calling
+     * thread if it is not cached, so do not call this from the UI thread.
+     * @param key where the file came from.
+     * @param in the contents of the file, it is closed once read.
+     * @return the Firmware, check Firmware.getError, only valid Firmware is cached.
+     * @throws IOException if in could not be read.
+     */
+    public Firmware load(String key, InputStream in) throws IOException {
+        byte[] file = Firmware.readAll(in);
+        Firmware firmware = get(key, file);
+        if (firmware == null) {
+            firmware = new Firmware();
+            if (firmware.loadAny(new ByteArrayInputStream(file))) {
+                put(key, file, firmware);
+            }
+        }
+        return firmware;
+    }
+
+    /**
+     * Find the Firmware held by a file without parsing it, so that on a miss the file may instead
+     * be parsed while it is uploaded, see ArduinoCommUpdater.upload(InputStream), and then put.
+     * @param key where the file came from.
+     * @param file the contents of the file.
+     * @return the cached Firmware, or null if the file is not cached.
+     */
+    public Firmware get(String key, byte[] file) {
+        String hash = getHash(file);
+        String id = key + '#' + hash;
+        synchronized (this) {
+            Firmware cached = entries.get(id);
+            if (cached != null) {
+                hits += 1;
+                return cached;
+            }
+            misses += 1;
+        }
+
+        Firmware saved = loadSaved(hash);
+        if (saved != null) {
+            add(key, id, saved);
+        }
+        return saved;
+    }
+
+    /**
+     * Cache Firmware which was loaded from a file, once it has loaded completely.
+     * @param key where the file came from.
+     * @param file the contents of the file.
+     * @param firmware loaded from file, it is not cached if it is invalid.
+     */
+    public void put(String key, byte[] file, Firmware firmware) {
+        if (firmware.getError() != null) {
+            return;
+        }
+
+        String hash = getHash(file);
+        save(hash, firmware);
+        add(key, key + '#' + hash, firmware);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public static final long DEFAULT_MAX_SAVED_BYTES = 0x400000; // sixteen full ATmega2560 images.
+
+    private final int maxBytes;
+    private final File dir;
+    private final long maxSavedBytes;
+    // in order of use, least recent first.
+    private final LinkedHashMap<String, Firmware> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private int hits = 0, misses = 0;
+    private static final String CONTAINER_SUFFIX = ".afw";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private synchronized void add(String key, String id, Firmware firmware) {
+        // an older version of the same file will not be asked for again.
+        Iterator<Map.Entry<String, Firmware>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Firmware> e = it.next();
+            if (e.getKey().startsWith(key + '#')) {
+                bytes -= e.getValue().getMemorySize();
+                it.remove();
+            }
+        }
+
+        entries.put(id, firmware);
+        bytes += firmware.getMemorySize();
+        trim();
+    }
+
+    /**
+     * @return the SHA-256 of the file in hex, also the name of its saved container.
+     */
+    private static String getHash(byte[] file) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(file);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // required of every Java platform and Android.
+        }
+
+        char[] hex = new char[2 * digest.length];
+        for (int i = 0; i < digest.length; i += 1) {
+            hex[2 * i] = HEX_DIGITS[(0xF0 & digest[i]) >> 4];
+            hex[2 * i + 1] = HEX_DIGITS[0x0F & digest[i]];
+        }
+        return new String(hex);
+    }
+
+    private void trim() {
+        Iterator<Firmware> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getMemorySize();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the Firmware saved for the hash, null if there is none or it is invalid.
+     */
+    private Firmware loadSaved(String hash) {
+        if (dir == null) {
+            return null;
+        }
+
+        File saved = new File(dir, hash + CONTAINER_SUFFIX);
+        if (!saved.exists()) {
+            return null;
+        }
+
+        Firmware firmware = new Firmware();
+        if (firmware.loadContainer(saved)) {
+            saved.setLastModified(System.currentTimeMillis()); // used, see trimSaved.
+            return firmware;
+        }
+        saved.delete();
+        return null;
+    }
+
+    private void save(String hash, Firmware firmware) {
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            return;
+        }
+
+        File saved = new File(dir, hash + CONTAINER_SUFFIX);
+        File tmp = new File(dir, hash + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                firmware.writeContainer(out, null);
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(saved)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+        trimSaved(saved);
+    }
+
+    /**
+     * Delete the least recently used containers until those left hold at most maxSavedBytes.
+     * A container which is mapped stays readable until it is unmapped.
+     * @param keep the container just saved, which is never deleted.
+     */
+    private void trimSaved(File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // most recently used first, loadSaved touches the containers it maps.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ma = a.lastModified(), mb = b.lastModified();
+                return ma > mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+
+        long total = keep.length();
+        for (File f : files) {
+            if (!f.getName().endsWith(CONTAINER_SUFFIX) || f.equals(keep)) {
+                continue;
+            }
+            long length = f.length();
+            if (total + length > maxSavedBytes) {
+                f.delete();
+            } else {
+                total += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * @author S. Ryan Edgar
+ * A compact binary form of Firmware which is loaded by memory mapping it, without decoding. It
+ * holds only the pages which hold data, each padded with 0xFF to a whole page, so a page is copied
+ * straight from the mapping when it is uploaded.
+ *
+ * All values are big endian:
+ *   int magic "AFWC", int version
+ *   3 bytes of the target signature and 1 byte 0, all 0 if the target is not known
+ *   int page size, int entry point, int range count, int page count
+ *   range count * (int start, int end exclusive)
+ *   page count * (int page index, int CRC32 of the page), in ascending page order
+ *   0 padding to a multiple of the page size
+ *   page count * page size bytes of page data
+ */
+class FirmwareContainer {
+    static final int MAGIC = 0x41465743, VERSION = 1;
+    private static final int FIXED_HEADER = 28;
+
+    /**
+     * @param profile the target, or null if not known, which sets the page size to 128 bytes.
+     */
+    static void write(Firmware firmware, DeviceProfile profile, OutputStream os) throws IOException {
+        int pageSize = profile != null ? profile.getPageSize() : 0x80;
+        ArrayList<Firmware.Range> ranges = firmware.getRanges();
+        int pageCount = firmware.getPageCount(pageSize);
+
+        byte[] pages = new byte[pageCount * pageSize];
+        int[] indices = new int[pageCount];
+        int i = 0;
+        for (int page = firmware.nextPage(0, pageSize); page >= 0; page = firmware.nextPage(page + 1, pageSize)) {
+            firmware.getPage(page, pageSize, pages, i * pageSize);
+            indices[i] = page;
+            i += 1;
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (int b = 0; b < 3; b += 1) {
+            out.writeByte(profile != null ? profile.getSignature()[b] : 0);
+        }
+        out.writeByte(0);
+        out.writeInt(pageSize);
+        out.writeInt(firmware.getEntryPoint());
+        out.writeInt(ranges.size());
+        out.writeInt(pageCount);
+        for (Firmware.Range r : ranges) {
+            out.writeInt(r.start);
+            out.writeInt(r.end);
+        }
+
+        CRC32 crc = new CRC32();
+        for (i = 0; i < pageCount; i += 1) {
+            crc.reset();
+            crc.update(pages, i * pageSize, pageSize);
+            out.writeInt(indices[i]);
+            out.writeInt((int) crc.getValue());
+        }
+
+        int header = getHeaderLength(ranges.size(), pageCount);
+        out.write(new byte[getDataOffset(header, pageSize) - header]);
+        out.write(pages);
+        out.flush();
+    }
+
+    /**
+     * Map a container file, checking its header and the CRC of every page.
+     * @throws IOException if the file could not be read.
+     */
+    static FirmwareContainer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping remains valid once the channel is closed.
+            return new FirmwareContainer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return null if the container is valid.
+     */
+    Firmware.ErrorCode getError() {
+        return error;
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    int getEntryPoint() {
+        return entryPoint;
+    }
+
+    int[] getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return the 3 signature bytes of the target, null if not known.
+     */
+    int[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return the CRC32 of the page, FlashCache.UNKNOWN if the container does not hold it.
+     */
+    long getPageCrc(int page) {
+        int i = Arrays.binarySearch(pageIndices, page);
+        return i >= 0 ? 0xFFFFFFFFL & data.getInt(crcOffset + 8 * i + 4) : FlashCache.UNKNOWN;
+    }
+
+    /**
+     * Copy the bytes at [address, address + length) which the container holds into dst. Bytes it
+     * does not hold are left as they are.
+     */
+    void copy(int address, int length, byte[] dst, int offset) {
+        if (length <= 0) {
+            return;
+        }
+
+        ByteBuffer src = data.duplicate();
+        for (int page = address / pageSize; page <= (address + length - 1) / pageSize; page += 1) {
+            int i = Arrays.binarySearch(pageIndices, page);
+            if (i < 0) {
+                continue;
+            }
+
+            int pageStart = page * pageSize;
+            int from = Math.max(address, pageStart), to = Math.min(address + length, pageStart + pageSize);
+            src.position(dataOffset + i * pageSize + from - pageStart);
+            src.get(dst, offset + from - address, to - from);
+        }
+    }
+
+    private final ByteBuffer data;
+    private Firmware.ErrorCode error;
+    private int pageSize, entryPoint, dataOffset, crcOffset;
+    private int[] ranges = new int[0], pageIndices = new int[0], signature;
+
+    private FirmwareContainer(ByteBuffer data) {
+        this.data = data;
+        error = parse();
+    }
+
+    private Firmware.ErrorCode parse() {
+        long length = data.capacity();
+        if (length < FIXED_HEADER || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            return Firmware.ErrorCode.FW_Format;
+        }
+
+        if (data.getInt(8) != 0) {
+            signature = new int[]{0xFF & data.get(8), 0xFF & data.get(9), 0xFF & data.get(10)};
+        }
+        pageSize = data.getInt(12);
+        entryPoint = data.getInt(16);
+        int rangeCount = data.getInt(20), pageCount = data.getInt(24);
+        if (pageSize <= 0 || (pageSize & (pageSize - 1)) != 0 || rangeCount < 0 || pageCount < 0
+                || rangeCount > length / 8 || pageCount > length / pageSize) {
+            return Firmware.ErrorCode.FW_Format;
+        }
+
+        int header = getHeaderLength(rangeCount, pageCount);
+        dataOffset = getDataOffset(header, pageSize);
+        crcOffset = header - 8 * pageCount;
+        if ((long) dataOffset + (long) pageCount * pageSize > length) {
+            return Firmware.ErrorCode.FW_Format;
+        }
+
+        ranges = new int[2 * rangeCount];
+        for (int i = 0; i < ranges.length; i += 1) {
+            ranges[i] = data.getInt(FIXED_HEADER + 4 * i);
+            if (i > 0 && ranges[i] < ranges[i - 1] + (i % 2)) {
+                return Firmware.ErrorCode.FW_ContiguousAddressing;
+            }
+        }
+
+        pageIndices = new int[pageCount];
+        byte[] page = new byte[pageSize];
+        CRC32 crc = new CRC32();
+        ByteBuffer src = data.duplicate();
+        src.position(dataOffset);
+        for (int i = 0; i < pageCount; i += 1) {
+            pageIndices[i] = data.getInt(crcOffset + 8 * i);
+            if (i > 0 && pageIndices[i] <= pageIndices[i - 1]) {
+                return Firmware.ErrorCode.FW_ContiguousAddressing;
+            }
+
+            src.get(page);
+            crc.reset();
+            crc.update(page, 0, pageSize);
+            if ((int) crc.getValue() != data.getInt(crcOffset + 8 * i + 4)) {
+                return Firmware.ErrorCode.FW_CheckSum;
+            }
+        }
+        return null;
+    }
+
+    private static int getHeaderLength(int rangeCount, int pageCount) {
+        return FIXED_HEADER + 8 * rangeCount + 8 * pageCount;
+    }
+
+    private static int getDataOffset(int headerLength, int pageSize) {
+        return (headerLength + pageSize - 1) / pageSize * pageSize;
+    }
+}
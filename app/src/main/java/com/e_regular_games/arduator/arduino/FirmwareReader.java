@@ -0,0 +1,18 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.InputStream;
+
+/**
+ * @author S. Ryan Edgar
+ * Reads one format of firmware file into a Firmware, so every format is uploaded from the same
+ * page oriented image. See Firmware.loadAny, which chooses the reader from the first bytes of the
+ * file.
+ */
+public interface FirmwareReader {
+    /**
+     * @param in the firmware file, it is closed once read.
+     * @param firmware receives the data of the file.
+     * @return true, if the file is valid, else false and firmware.getError indicates why.
+     */
+    boolean read(InputStream in, Firmware firmware);
+}
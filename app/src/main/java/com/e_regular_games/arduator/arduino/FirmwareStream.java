@@ -0,0 +1,96 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.InputStream;
+
+/**
+ * @author S. Ryan Edgar
+ * Loads Firmware on a background thread so the file can be parsed while the connection to the
+ * device is made and the bootloader is synchronized. Pages become ready in address order as soon
+ * as the records which fill them have been checked, the OnPages API is notified from the loading
+ * thread whenever more pages are ready, when loading completes or when it fails.
+ *
+ * The whole image is kept in the Firmware object, it is needed again to verify the upload, so
+ * readiness is tracked as a count of completed pages rather than by queuing copies of each page.
+ */
+public class FirmwareStream {
+    public interface OnPages {
+        void onPagesReady(FirmwareStream self);
+        void onError(FirmwareStream self, Firmware.ErrorCode code);
+    }
+
+    /**
+     * @param in Stream containing the data of the firmware file, it is closed once read.
+     * @param pageLen length of a page in bytes, OnPages is notified once per completed page.
+     */
+    public FirmwareStream(InputStream in, int pageLen) {
+        this.in = in;
+        this.pageLen = pageLen;
+    }
+
+    /**
+     * @param loaded Firmware which has already been loaded, every page is ready at once. It may be
+     *               shared with other streams, it is only read.
+     */
+    public FirmwareStream(Firmware loaded) {
+        firmware = loaded;
+        complete = true;
+    }
+
+    public void start(OnPages onPages) {
+        this.onPages = onPages;
+        if (complete) {
+            return;
+        }
+
+        firmware.setLoadListener(new Firmware.LoadListener() {
+            @Override
+            public void onLoaded(int address) {
+                int ready = address / pageLen;
+                if (ready > readyPages) {
+                    readyPages = ready;
+                    FirmwareStream.this.onPages.onPagesReady(FirmwareStream.this);
+                }
+            }
+        });
+
+        loader.start();
+    }
+
+    public Firmware getFirmware() {
+        return firmware;
+    }
+
+    /**
+     * @return true once the whole file has been read and every record was valid.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @param pageIndex index of the page, page n begins at flash address n * pageLen.
+     * @return true if the page, and every page before it, may be read from getFirmware().
+     */
+    public boolean isPageReady(int pageIndex) {
+        return complete || pageIndex < readyPages;
+    }
+
+    private InputStream in;
+    private int pageLen;
+    private OnPages onPages;
+    private Firmware firmware = new Firmware();
+    private volatile int readyPages = 0;
+    private volatile boolean complete = false;
+
+    private Thread loader = new Thread("FirmwareStream") {
+        @Override
+        public void run() {
+            if (firmware.loadAny(in)) {
+                complete = true;
+                onPages.onPagesReady(FirmwareStream.this);
+            } else {
+                onPages.onError(FirmwareStream.this, firmware.getError());
+            }
+        }
+    };
+}
@@ -0,0 +1,154 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * @author S. Ryan Edgar
+ * Remembers a CRC32 of each flash page last written to a device, keyed by the device address, so
+ * ArduinoCommUpdater can skip pages which already hold the right data. The cache is optionally
+ * saved to a file so it survives the application restarting.
+ *
+ * A device is forgotten as soon as programming starts and remembered again only once the upload
+ * is verified, so an interrupted upload never leaves stale hashes behind. The cache cannot know
+ * about a device programmed by other means, use ArduinoCommUpdater.FlashMode.ReadCompare when
+ * that is possible.
+ */
+public class FlashCache {
+    public static final long UNKNOWN = -1;
+
+    /**
+     * A cache which is kept in memory only.
+     */
+    public FlashCache() {
+        file = null;
+    }
+
+    /**
+     * @param file where the cache is saved, it is read now if it exists.
+     */
+    public FlashCache(File file) {
+        this.file = file;
+        read();
+    }
+
+    /**
+     * @param page buffer holding exactly one page.
+     * @return the hash of the page, as stored in the cache.
+     */
+    public static long hash(byte[] page) {
+        CRC32 crc = new CRC32();
+        crc.update(page, 0, page.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Remove a device from the cache and return what was known about it.
+     * @param device the address of the device.
+     * @param pageLen length of a page in bytes, hashes for a different page length are dropped.
+     * @return the hash of each page indexed by page, UNKNOWN for pages which were not recorded.
+     */
+    public synchronized long[] take(String device, int pageLen) {
+        Entry e = entries.remove(device);
+        write();
+
+        if (e == null || e.pageLen != pageLen) {
+            return new long[0];
+        }
+        return e.hashes;
+    }
+
+    /**
+     * Record the pages which now hold known data on a device.
+     * @param device the address of the device.
+     * @param pageLen length of a page in bytes.
+     * @param hashes the hash of each page indexed by page, UNKNOWN for pages which are not known.
+     */
+    public synchronized void put(String device, int pageLen, long[] hashes) {
+        Entry e = new Entry();
+        e.pageLen = pageLen;
+        e.hashes = Arrays.copyOf(hashes, hashes.length);
+        entries.put(device, e);
+        write();
+    }
+
+    private static class Entry {
+        int pageLen;
+        long[] hashes;
+    }
+
+    private final File file;
+    private Map<String, Entry> entries = new HashMap<>();
+    private static final int VERSION = 1;
+
+    private void read() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != VERSION) {
+                    return;
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i += 1) {
+                    String device = in.readUTF();
+                    Entry e = new Entry();
+                    e.pageLen = in.readInt();
+                    e.hashes = new long[in.readInt()];
+                    for (int p = 0; p < e.hashes.length; p += 1) {
+                        e.hashes[p] = in.readLong();
+                    }
+                    entries.put(device, e);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    private void write() {
+        if (file == null) {
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                    out.writeUTF(me.getKey());
+                    out.writeInt(me.getValue().pageLen);
+                    out.writeInt(me.getValue().hashes.length);
+                    for (long h : me.getValue().hashes) {
+                        out.writeLong(h);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.e_regular_games.arduator.arduino;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * @author S. Ryan Edgar
+ * The Android EventLoop, running tasks on the Looper of a Handler.
+ */
+public class HandlerEventLoop implements EventLoop {
+    /**
+     * An EventLoop on the main (UI) thread.
+     */
+    public HandlerEventLoop() {
+        this(new Handler(Looper.getMainLooper()));
+    }
+
+    public HandlerEventLoop(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return an EventLoop on a thread shared by every connection, started on first use, which
+     * keeps the bootloader protocol off the UI thread.
+     */
+    public static synchronized HandlerEventLoop io() {
+        if (io == null) {
+            HandlerThread thread = new HandlerThread("ArduinoCommIO");
+            thread.start();
+            io = new HandlerEventLoop(new Handler(thread.getLooper()));
+        }
+        return io;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        post(task);
+    }
+
+    @Override
+    public void post(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        handler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    private final Handler handler;
+    private static HandlerEventLoop io;
+}
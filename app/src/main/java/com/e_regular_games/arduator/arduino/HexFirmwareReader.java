@@ -0,0 +1,14 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.InputStream;
+
+/**
+ * @author S. Ryan Edgar
+ * Reads Intel HEX, see Firmware.load.
+ */
+public class HexFirmwareReader implements FirmwareReader {
+    @Override
+    public boolean read(InputStream in, Firmware firmware) {
+        return firmware.load(in);
+    }
+}
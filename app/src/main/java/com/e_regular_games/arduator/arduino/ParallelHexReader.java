@@ -0,0 +1,161 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * @author S. Ryan Edgar
+ * Reads Intel HEX like Firmware.load, but decodes the records and verifies their checksums on
+ * several threads, which is most of the cost of loading a large image such as a full ATmega2560
+ * sketch. The file is split into chunks which end at a line ending, each chunk is decoded in place
+ * by a task on the executor. The decoded records are then applied to the image in file order on
+ * the calling thread, which carries the extended address between chunks and checks that ranges
+ * ascend without overlapping, exactly as Firmware.load does.
+ *
+ * The first invalid record in the file is reported, with the same error code and line number as
+ * Firmware.load. Files smaller than two chunks are decoded on the calling thread.
+ */
+public class ParallelHexReader implements FirmwareReader {
+    /**
+     * @param executor runs the decoding tasks, such as Executors.newFixedThreadPool.
+     * @param parallelism the number of threads of executor to use.
+     */
+    public ParallelHexReader(ExecutorService executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public boolean read(InputStream in, Firmware firmware) {
+        byte[] hex;
+        try {
+            hex = Firmware.readAll(in);
+        } catch (IOException e) {
+            return firmware.fail(Firmware.ErrorCode.FW_FileName);
+        }
+
+        List<Chunk> chunks = split(hex);
+        if (chunks.size() == 1) {
+            chunks.get(0).call();
+        } else {
+            try {
+                for (Future<Chunk> f : executor.invokeAll(chunks)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return firmware.fail(Firmware.ErrorCode.FW_FileName);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        firmware.startRecords();
+        int line = 1;
+        for (Chunk c : chunks) {
+            for (int r = 0; r < c.recordCount; r += 1) {
+                if (!firmware.addRecord(hex, c.records[2 * r], line + c.records[2 * r + 1])) {
+                    return false;
+                }
+            }
+            if (c.error != null) {
+                return firmware.fail(c.error, line + c.errorLine);
+            }
+            line += c.lines;
+        }
+        return true;
+    }
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private static final int MIN_CHUNK_LEN = 0x4000;
+
+    /**
+     * @return chunks covering hex, each after the previous one and ending after a '\n'.
+     */
+    private List<Chunk> split(byte[] hex) {
+        // a few chunks per thread, so one slow thread does not hold up the rest.
+        int chunkLen = Math.max(MIN_CHUNK_LEN, hex.length / (4 * parallelism));
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < hex.length) {
+            int end = Math.min(start + chunkLen, hex.length);
+            while (end < hex.length && hex[end - 1] != '\n') {
+                end += 1;
+            }
+            chunks.add(new Chunk(hex, start, end));
+            start = end;
+        }
+        if (chunks.isEmpty()) {
+            chunks.add(new Chunk(hex, 0, 0));
+        }
+        return chunks;
+    }
+
+    /**
+     * Decodes the records of [start, end) of the file in place, stopping at the first invalid one.
+     * Line numbers are counted from 0 at the start of the chunk.
+     */
+    private static class Chunk implements Callable<Chunk> {
+        Chunk(byte[] hex, int start, int end) {
+            this.hex = hex;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Chunk call() {
+            int lineStart = start, line = 0;
+            for (int i = start; i <= end; i += 1) {
+                if (i < end && hex[i] != '\n' && hex[i] != '\r') {
+                    continue;
+                }
+
+                int len = i - lineStart;
+                if (len > 0) {
+                    Firmware.ErrorCode err = Firmware.decodeRecord(hex, lineStart, len);
+                    if (err != null) {
+                        error = err;
+                        errorLine = line;
+                        break;
+                    }
+                    addRecord(lineStart, line);
+                }
+
+                if (i < end && hex[i] == '\n') {
+                    line += 1;
+                }
+                lineStart = i + 1;
+            }
+            lines = line;
+            return this;
+        }
+
+        final byte[] hex;
+        final int start, end;
+        // (offset, line) of each decoded record.
+        int[] records = new int[64];
+        int recordCount = 0, lines = 0, errorLine = 0;
+        Firmware.ErrorCode error;
+
+        private void addRecord(int offset, int line) {
+            if (2 * recordCount == records.length) {
+                int[] grown = new int[2 * records.length];
+                System.arraycopy(records, 0, grown, 0, records.length);
+                records = grown;
+            }
+            records[2 * recordCount] = offset;
+            records[2 * recordCount + 1] = line;
+            recordCount += 1;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * @author S. Ryan Edgar
+ * Bytes received from a socket, passed from the thread reading the socket to the thread handling
+ * them without allocating or locking. Exactly one thread may write and one other thread may read.
+ * The writer reads the socket directly into the free part of the ring, and waits only if the
+ * reader has fallen a whole ring behind.
+ */
+class ReceiveRing {
+    /**
+     * @param capacity bytes held, rounded up to a power of two.
+     */
+    ReceiveRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        ring = new byte[size];
+    }
+
+    /**
+     * Read from in into the ring, blocking until in has data. Writer thread only.
+     * @return the number of bytes read, -1 at the end of the stream.
+     * @throws InterruptedIOException if interrupted while the ring is full.
+     */
+    int write(InputStream in) throws IOException {
+        long free;
+        while ((free = ring.length - (written - consumed)) == 0) {
+            synchronized (this) {
+                writerWaiting = true;
+                try {
+                    if (ring.length - (written - consumed) == 0) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                } finally {
+                    writerWaiting = false;
+                }
+            }
+        }
+
+        int at = (int) (written & (ring.length - 1));
+        int length = in.read(ring, at, (int) Math.min(free, ring.length - at));
+        if (length > 0) {
+            written += length; // publishes the bytes to the reader.
+        }
+        return length;
+    }
+
+    /**
+     * Move received bytes into dst. Reader thread only.
+     * @return the number of bytes copied, 0 if none have been received.
+     */
+    int read(byte[] dst) {
+        long available = written - consumed;
+        int at = (int) (consumed & (ring.length - 1));
+        int length = (int) Math.min(Math.min(available, dst.length), ring.length - at);
+        if (length == 0) {
+            return 0;
+        }
+
+        System.arraycopy(ring, at, dst, 0, length);
+        consumed += length;
+        if (writerWaiting) {
+            synchronized (this) {
+                notify();
+            }
+        }
+        return length;
+    }
+
+    boolean isEmpty() {
+        return written == consumed;
+    }
+
+    private final byte[] ring;
+    // totals which only ever grow, each is written by one thread only.
+    private volatile long written = 0, consumed = 0;
+    private volatile boolean writerWaiting = false;
+}
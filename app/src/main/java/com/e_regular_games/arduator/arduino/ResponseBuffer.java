@@ -0,0 +1,114 @@
+package com.e_regular_games.arduator.arduino;
+
+/**
+ * @author S. Ryan Edgar
+ * Bytes received from the bootloader which have not been parsed yet. A ring of primitive bytes,
+ * so consuming a response is constant time and nothing is allocated per byte received. The ring
+ * only grows if more bytes arrive than have ever been pending at once.
+ */
+class ResponseBuffer {
+    /**
+     * @param capacity initial number of bytes held, rounded up to a power of two.
+     */
+    ResponseBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        ring = new byte[size];
+    }
+
+    /**
+     * Append received bytes.
+     */
+    void append(byte[] src, int length) {
+        if (count + length > ring.length) {
+            grow(count + length);
+        }
+
+        int tail = (head + count) & (ring.length - 1);
+        int first = Math.min(length, ring.length - tail);
+        System.arraycopy(src, 0, ring, tail, first);
+        System.arraycopy(src, first, ring, 0, length - first);
+        count += length;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @param index offset from the oldest byte held.
+     */
+    byte get(int index) {
+        return ring[(head + index) & (ring.length - 1)];
+    }
+
+    /**
+     * Drop the oldest bytes.
+     */
+    void skip(int length) {
+        length = Math.min(length, count);
+        head = (head + length) & (ring.length - 1);
+        count -= length;
+    }
+
+    /**
+     * Drop bytes until the oldest one held is marker.
+     * @return true if marker was found, otherwise the buffer is now empty.
+     */
+    boolean skipTo(byte marker) {
+        int mask = ring.length - 1;
+        int i = 0;
+        while (i < count && ring[(head + i) & mask] != marker) {
+            i += 1;
+        }
+        skip(i);
+        return count > 0;
+    }
+
+    /**
+     * @return true if the held bytes starting at offset equal expected.
+     */
+    boolean matches(int offset, byte[] expected, int length) {
+        if (offset + length > count) {
+            return false;
+        }
+
+        int start = (head + offset) & (ring.length - 1);
+        int first = Math.min(length, ring.length - start);
+        for (int i = 0; i < first; i += 1) {
+            if (ring[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        for (int i = first; i < length; i += 1) {
+            if (ring[i - first] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    private byte[] ring;
+    private int head = 0, count = 0;
+
+    private void grow(int required) {
+        int size = ring.length;
+        while (size < required) {
+            size <<= 1;
+        }
+
+        byte[] larger = new byte[size];
+        int first = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, larger, 0, first);
+        System.arraycopy(ring, 0, larger, first, count - first);
+        ring = larger;
+        head = 0;
+    }
+}
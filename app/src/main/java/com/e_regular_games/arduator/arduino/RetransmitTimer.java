@@ -0,0 +1,66 @@
+package com.e_regular_games.arduator.arduino;
+
+/**
+ * @author S. Ryan Edgar
+ * How long to wait for a response before sending a command again, computed from measured round
+ * trip times the way TCP does (RFC 6298): a smoothed round trip time plus four times its mean
+ * deviation. Each timeout doubles the wait until the next round trip is measured.
+ */
+class RetransmitTimer {
+    /**
+     * @param initialMs the timeout until a round trip has been measured.
+     * @param minMs the least timeout, however fast the round trips.
+     * @param maxMs the greatest timeout, however slow the round trips or many the timeouts.
+     */
+    RetransmitTimer(int initialMs, int minMs, int maxMs) {
+        this.initialMs = initialMs;
+        this.minMs = minMs;
+        this.maxMs = maxMs;
+        timeoutMs = initialMs;
+    }
+
+    /**
+     * @param nanos a round trip time. Only measure commands which were sent once, a response to a
+     *              command which was sent again can't be matched to either send.
+     */
+    void addSample(long nanos) {
+        double ms = nanos / 1e6;
+        if (srtt < 0) {
+            srtt = ms;
+            rttvar = ms / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - ms);
+            srtt = 0.875 * srtt + 0.125 * ms;
+        }
+        timeoutMs = clamp(srtt + Math.max(1, 4 * rttvar));
+    }
+
+    void backOff() {
+        timeoutMs = clamp(2.0 * timeoutMs);
+    }
+
+    int getTimeout() {
+        return timeoutMs;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, -1 until one has been measured.
+     */
+    double getSmoothedRtt() {
+        return srtt;
+    }
+
+    void reset() {
+        srtt = -1;
+        rttvar = 0;
+        timeoutMs = initialMs;
+    }
+
+    private final int initialMs, minMs, maxMs;
+    private double srtt = -1, rttvar = 0;
+    private int timeoutMs;
+
+    private int clamp(double ms) {
+        return (int) Math.max(minMs, Math.min(maxMs, Math.ceil(ms)));
+    }
+}
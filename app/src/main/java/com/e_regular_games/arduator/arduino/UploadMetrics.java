@@ -0,0 +1,212 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.util.Locale;
+
+/**
+ * @author S. Ryan Edgar
+ * What happened during one upload, to tell whether a slow upload is due to the radio, the
+ * Bluetooth module or the bootloader: bytes moved, the round trip time of each kind of STK500
+ * command, timeouts, retries, verify mismatches and the time spent in each phase. Recorded by
+ * ArduinoCommUpdater, export it with toJson.
+ *
+ * Round trips are measured from sending a command until its response is parsed. When pipelined
+ * this includes the time spent behind the commands sent before it.
+ */
+public class UploadMetrics {
+    public enum Phase {Connect, Sync, Program, Verify}
+    public enum Command {Sync, LoadAddress, Program, ReadPage, Other}
+
+    /**
+     * Round trip times in buckets of powers of two milliseconds: under 1ms, under 2ms, under 4ms
+     * and so on, with the last bucket holding everything slower.
+     */
+    public static class Histogram {
+        public static final int BUCKETS = 14;
+
+        public synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean in microseconds, 0 if nothing was recorded.
+         */
+        public synchronized long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        public synchronized long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * @param bucket 0 to BUCKETS - 1.
+         * @return the number of round trips of at least 2^(bucket-1)ms and under 2^bucket ms.
+         */
+        public synchronized int getBucket(int bucket) {
+            return buckets[bucket];
+        }
+
+        private int count = 0;
+        private long total = 0, min = Long.MAX_VALUE, max = 0;
+        private int[] buckets = new int[BUCKETS];
+
+        private synchronized void add(long micros) {
+            count += 1;
+            total += micros;
+            min = Math.min(min, micros);
+            max = Math.max(max, micros);
+
+            int bucket = 0;
+            for (long ms = micros / 1000; ms > 0 && bucket < BUCKETS - 1; ms >>= 1) {
+                bucket += 1;
+            }
+            buckets[bucket] += 1;
+        }
+
+        private synchronized void toJson(StringBuilder sb) {
+            sb.append("{\"count\":").append(count)
+                    .append(",\"meanUs\":").append(getMean())
+                    .append(",\"minUs\":").append(getMin())
+                    .append(",\"maxUs\":").append(max)
+                    .append(",\"bucketsMs\":[");
+            for (int i = 0; i < BUCKETS; i += 1) {
+                sb.append(i == 0 ? "" : ",").append(buckets[i]);
+            }
+            sb.append("]}");
+        }
+    }
+
+    public Histogram getRoundTrips(Command command) {
+        return roundTrips[command.ordinal()];
+    }
+
+    /**
+     * @return milliseconds spent in the phase, so far if it has not ended.
+     */
+    public synchronized long getPhaseTime(Phase phase) {
+        long nanos = phaseNanos[phase.ordinal()];
+        if (current == phase) {
+            nanos += System.nanoTime() - phaseStart;
+        }
+        return nanos / 1000000;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized int getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized int getRetries() {
+        return retries;
+    }
+
+    public synchronized int getVerifyMismatches() {
+        return verifyMismatches;
+    }
+
+    public synchronized int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    public synchronized int getPagesSkipped() {
+        return pagesSkipped;
+    }
+
+    /**
+     * @return the report as a JSON object.
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"bytesSent\":").append(bytesSent)
+                .append(",\"bytesReceived\":").append(bytesReceived)
+                .append(",\"timeouts\":").append(timeouts)
+                .append(",\"retries\":").append(retries)
+                .append(",\"verifyMismatches\":").append(verifyMismatches)
+                .append(",\"pagesWritten\":").append(pagesWritten)
+                .append(",\"pagesSkipped\":").append(pagesSkipped)
+                .append(",\"connectionIntervalUs\":").append(connectionInterval)
+                .append(",\"phasesMs\":{");
+        for (Phase p : Phase.values()) {
+            sb.append(p.ordinal() == 0 ? "" : ",").append('"').append(p.name().toLowerCase(Locale.US))
+                    .append("\":").append(getPhaseTime(p));
+        }
+        sb.append("},\"roundTrips\":{");
+        for (Command c : Command.values()) {
+            sb.append(c.ordinal() == 0 ? "" : ",").append('"').append(c.name()).append("\":");
+            roundTrips[c.ordinal()].toJson(sb);
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private final Histogram[] roundTrips = new Histogram[Command.values().length];
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private Phase current;
+    private long phaseStart;
+    private long bytesSent = 0, bytesReceived = 0;
+    private int timeouts = 0, retries = 0, verifyMismatches = 0, pagesWritten = 0, pagesSkipped = 0;
+    private int connectionInterval = -1;
+
+    {
+        for (int i = 0; i < roundTrips.length; i += 1) {
+            roundTrips[i] = new Histogram();
+        }
+    }
+
+    /**
+     * End the current phase, if any, and begin the next.
+     * @param phase null to end the current phase only.
+     */
+    synchronized void startPhase(Phase phase) {
+        long now = System.nanoTime();
+        if (current != null) {
+            phaseNanos[current.ordinal()] += now - phaseStart;
+        }
+        current = phase;
+        phaseStart = now;
+    }
+
+    void addRoundTrip(Command command, long nanos) {
+        roundTrips[command.ordinal()].add(nanos / 1000);
+    }
+
+    synchronized void addBytes(long sent, long received) {
+        bytesSent += sent;
+        bytesReceived += received;
+    }
+
+    synchronized void addTimeout() {
+        timeouts += 1;
+    }
+
+    synchronized void addRetry() {
+        retries += 1;
+    }
+
+    synchronized void addVerifyMismatch() {
+        verifyMismatches += 1;
+    }
+
+    synchronized void addPage(boolean written) {
+        if (written) {
+            pagesWritten += 1;
+        } else {
+            pagesSkipped += 1;
+        }
+    }
+
+    synchronized void setConnectionInterval(int micros) {
+        connectionInterval = micros;
+    }
+}
@@ -0,0 +1,272 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ArduinoCommUpdaterTest {
+    private static final int[] ATMEGA328P_SIGNATURE = {0x1E, 0x95, 0x0F};
+
+    private ExecutorEventLoop loop;
+    private Stk500Simulator sim;
+    private List<ArduinoCommUpdater.ErrorCode> errors;
+
+    @Before
+    public void setUp() {
+        loop = new ExecutorEventLoop("Updater");
+        sim = new Stk500Simulator(loop, DeviceProfile.ATMEGA328P, ATMEGA328P_SIGNATURE);
+    }
+
+    @After
+    public void tearDown() {
+        sim.shutdown();
+        loop.shutdown();
+    }
+
+    @Test
+    public void upload_programsAndVerifies() throws Exception {
+        byte[] image = HexImages.randomImage(0x1234, 11);
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        assertTrue(upload(updater, HexImages.toHex(image, 0)));
+
+        assertFlashHolds(image, 0);
+        int pages = (image.length + 0x7F) / 0x80;
+        assertEquals(pages, sim.getPagesProgrammed());
+        assertEquals(pages, sim.getPagesRead());
+
+        UploadMetrics metrics = updater.getMetrics();
+        assertEquals(pages, metrics.getPagesWritten());
+        assertEquals(pages, metrics.getRoundTrips(UploadMetrics.Command.Program).getCount());
+        assertEquals(pages, metrics.getRoundTrips(UploadMetrics.Command.ReadPage).getCount());
+        assertEquals(2 * pages, metrics.getRoundTrips(UploadMetrics.Command.LoadAddress).getCount());
+        assertEquals(sim.getBytesSent(), metrics.getBytesSent());
+        assertEquals(0, metrics.getTimeouts());
+        assertEquals(0, metrics.getVerifyMismatches());
+    }
+
+    @Test
+    public void upload_pipelined() throws Exception {
+        byte[] image = HexImages.randomImage(0x2000, 12);
+        sim.setMtu(7);
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        updater.setPipelineWindow(4);
+        assertTrue(upload(updater, HexImages.toHex(image, 0x100)));
+
+        assertFlashHolds(image, 0x100);
+    }
+
+    @Test
+    public void upload_recoversFromCorruptedReplies() throws Exception {
+        byte[] image = HexImages.randomImage(0x800, 13);
+        sim.setFaults(5, 0.0005, 0.02);
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        assertTrue(upload(updater, HexImages.toHex(image, 0)));
+
+        assertFlashHolds(image, 0);
+    }
+
+    @Test
+    public void upload_pipelinedRecoversFromCorruptedReplies() throws Exception {
+        byte[] image = HexImages.randomImage(0x1000, 14);
+        // these seeds corrupt replies while several commands are in flight.
+        for (long seed : new long[]{4, 10}) {
+            sim.shutdown();
+            sim = new Stk500Simulator(loop, DeviceProfile.ATMEGA328P, ATMEGA328P_SIGNATURE);
+            sim.setMtu(20);
+            sim.setFaults(seed, 0.0005, 0.02);
+            ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+            updater.setPipelineWindow(4);
+            assertTrue("seed " + seed, upload(updater, HexImages.toHex(image, 0)));
+            assertFlashHolds(image, 0);
+        }
+    }
+
+    @Test
+    public void upload_readCompareProgramsOnlyChangedPages() throws Exception {
+        byte[] image = HexImages.randomImage(0x1000, 18);
+        assertTrue(upload(new ArduinoCommUpdater(sim, loop, loop), HexImages.toHex(image, 0)));
+
+        image[0x345] ^= 0x5A;
+        int programmed = sim.getPagesProgrammed();
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        updater.setFlashMode(ArduinoCommUpdater.FlashMode.ReadCompare, null);
+        assertTrue(upload(updater, HexImages.toHex(image, 0)));
+        assertEquals(1, sim.getPagesProgrammed() - programmed);
+        assertFlashHolds(image, 0);
+    }
+
+    @Test
+    public void upload_cachedHashProgramsOnlyChangedPages() throws Exception {
+        File file = File.createTempFile("flash", ".cache");
+        try {
+            byte[] image = HexImages.randomImage(0x1000, 19);
+            ArduinoCommUpdater first = new ArduinoCommUpdater(sim, loop, loop);
+            first.setFlashMode(ArduinoCommUpdater.FlashMode.Full, new FlashCache(file));
+            assertTrue(upload(first, HexImages.toHex(image, 0)));
+
+            // a new cache on the same file, as after the application restarts.
+            image[0x345] ^= 0x5A;
+            int programmed = sim.getPagesProgrammed();
+            ArduinoCommUpdater second = new ArduinoCommUpdater(sim, loop, loop);
+            second.setFlashMode(ArduinoCommUpdater.FlashMode.CachedHash, new FlashCache(file));
+            assertTrue(upload(second, HexImages.toHex(image, 0)));
+            assertEquals(1, sim.getPagesProgrammed() - programmed);
+            assertFlashHolds(image, 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void upload_verifiesSampledPages() throws Exception {
+        byte[] image = HexImages.randomImage(0x1000, 17);
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        updater.setVerifyMode(ArduinoCommUpdater.VerifyMode.Sampled, 8);
+        assertTrue(upload(updater, HexImages.toHex(image, 0)));
+
+        assertFlashHolds(image, 0);
+        assertEquals(32, sim.getPagesProgrammed());
+        assertEquals(5, sim.getPagesRead()); // pages 0, 8, 16, 24 and 31.
+    }
+
+    @Test
+    public void upload_loadsExtendedAddress() throws Exception {
+        sim.shutdown();
+        sim = new Stk500Simulator(loop, DeviceProfile.ATMEGA2560, new int[]{0x1E, 0x98, 0x01});
+        byte[] image = HexImages.randomImage(0x2000, 15);
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        updater.setDeviceProfile(DeviceProfile.ATMEGA2560);
+        updater.setPipelineWindow(2);
+        assertTrue(upload(updater, HexImages.toHex(image, 0x1F000)));
+
+        assertFlashHolds(image, 0x1F000);
+    }
+
+    @Test
+    public void upload_reportsProgress() throws Exception {
+        byte[] image = HexImages.randomImage(0x1000, 15);
+        sim.setLatency(2);
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        final List<ArduinoCommUpdater.Progress> reports = new ArrayList<>();
+        updater.setOnProgress(new ArduinoCommUpdater.OnProgress() {
+            @Override
+            public void onProgress(ArduinoCommUpdater.Progress progress) {
+                reports.add(progress);
+            }
+        }, 50);
+        assertTrue(upload(updater, HexImages.toHex(image, 0)));
+
+        // coalesced, far fewer reports than the 64 pages written and verified.
+        assertTrue(reports.size() > 1);
+        assertTrue(reports.size() < 64);
+        ArduinoCommUpdater.Progress last = reports.get(reports.size() - 1);
+        assertEquals(image.length, last.bytesTotal);
+        assertEquals(image.length, last.bytesWritten);
+        assertEquals(image.length, last.bytesVerified);
+        assertEquals(0, last.etaMs);
+        for (int i = 1; i < reports.size(); i += 1) {
+            assertTrue(reports.get(i).bytesWritten + reports.get(i).bytesVerified
+                    >= reports.get(i - 1).bytesWritten + reports.get(i - 1).bytesVerified);
+        }
+    }
+
+    @Test
+    public void resume_continuesAfterLinkDrops() throws Exception {
+        byte[] image = HexImages.randomImage(0x1000, 16);
+        sim.setLinkDrop(10);
+        final ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        assertFalse(upload(updater, HexImages.toHex(image, 0)));
+        assertTrue(updater.canResume());
+
+        assertTrue(run(updater, new Runnable() {
+            @Override
+            public void run() {
+                updater.resume(true);
+            }
+        }));
+        assertFlashHolds(image, 0);
+        // only the page which was never acknowledged is programmed twice.
+        assertEquals(image.length / 0x80 + 1, sim.getPagesProgrammed());
+        assertFalse(updater.canResume());
+    }
+
+    @Test
+    public void resume_reconnectsOnNewConnectionThread() throws Exception {
+        byte[] image = HexImages.randomImage(0x1000, 17);
+        sim.setLinkDrop(6);
+        final ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        updater.setPipelineWindow(4);
+        assertFalse(upload(updater, HexImages.toHex(image, 0)));
+
+        // the simulator's first radio thread ended with the link, as a Bluetooth Classic one does.
+        assertTrue(run(updater, new Runnable() {
+            @Override
+            public void run() {
+                updater.resume(true);
+            }
+        }));
+        assertEquals(2, sim.getConnections());
+        assertFlashHolds(image, 0);
+        assertFalse(updater.canResume());
+    }
+
+    @Test
+    public void upload_rejectsOtherDevice() throws Exception {
+        ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+        updater.setDeviceProfile(DeviceProfile.ATMEGA32U4);
+        assertFalse(upload(updater, HexImages.toHex(HexImages.randomImage(0x100, 14), 0)));
+        assertEquals(ArduinoCommUpdater.ErrorCode.Signature, errors.get(0));
+        assertEquals(0, sim.getPagesProgrammed());
+    }
+
+    private boolean upload(final ArduinoCommUpdater updater, final String hex) throws InterruptedException {
+        return run(updater, new Runnable() {
+            @Override
+            public void run() {
+                updater.upload(HexImages.stream(hex));
+            }
+        });
+    }
+
+    /**
+     * @return true if the upload started by start completes. start runs on the loop, after the
+     * events of any earlier upload.
+     */
+    private boolean run(ArduinoCommUpdater updater, Runnable start) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        errors = new ArrayList<>();
+        updater.setOnStatus(new ArduinoCommUpdater.OnStatus() {
+            @Override
+            public void onError(ArduinoCommUpdater.ErrorCode code) {
+                errors.add(code);
+            }
+
+            @Override
+            public void onStatus(ArduinoCommUpdater.StatusCode progress) {
+                if (progress == ArduinoCommUpdater.StatusCode.Complete
+                        || progress == ArduinoCommUpdater.StatusCode.Disconnected) {
+                    done.countDown();
+                }
+            }
+        });
+
+        loop.post(start);
+        assertTrue("upload did not finish", done.await(60, TimeUnit.SECONDS));
+        return updater.success();
+    }
+
+    private void assertFlashHolds(byte[] image, int address) {
+        byte[] flash = sim.getFlash();
+        for (int i = 0; i < image.length; i += 1) {
+            assertEquals("flash[" + (address + i) + "]", image[i], flash[address + i]);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchUpdaterTest {
+    private static final int[] ATMEGA328P_SIGNATURE = {0x1E, 0x95, 0x0F};
+
+    private ExecutorEventLoop loop;
+    private List<Stk500Simulator> sims = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        loop = new ExecutorEventLoop("Batch");
+    }
+
+    @After
+    public void tearDown() {
+        for (Stk500Simulator sim : sims) {
+            sim.shutdown();
+        }
+        loop.shutdown();
+    }
+
+    @Test
+    public void add_uploadsToEveryDeviceWithinParallelism() throws Exception {
+        byte[] image = HexImages.randomImage(0x800, 41);
+        Firmware firmware = new Firmware();
+        assertTrue(firmware.load(HexImages.stream(HexImages.toHex(image, 0))));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] running = {0, 0}, result = {-1, -1};
+        BatchUpdater batch = new BatchUpdater(firmware, 2, loop, loop);
+        batch.setOnBatchEvent(new BatchUpdater.BatchEvent() {
+            @Override
+            public void onDeviceStatus(ArduinoComm device, ArduinoCommUpdater.StatusCode status) {
+                if (status == ArduinoCommUpdater.StatusCode.Connecting) {
+                    running[0] += 1;
+                    running[1] = Math.max(running[1], running[0]);
+                }
+            }
+
+            @Override
+            public void onDeviceDone(ArduinoComm device, boolean success, UploadMetrics metrics) {
+                running[0] -= 1;
+            }
+
+            @Override
+            public void onBatchComplete(int succeeded, int failed) {
+                result[0] = succeeded;
+                result[1] = failed;
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i < 5; i += 1) {
+            Stk500Simulator sim = new Stk500Simulator(loop, DeviceProfile.ATMEGA328P, ATMEGA328P_SIGNATURE);
+            sim.setLatency(1);
+            sims.add(sim);
+        }
+        // one device which is not an ATmega328P fails without holding up the others.
+        sims.add(new Stk500Simulator(loop, DeviceProfile.ATMEGA328P, new int[]{0x1E, 0x95, 0x87}));
+        for (Stk500Simulator sim : sims) {
+            batch.add(sim);
+        }
+
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(5, result[0]);
+        assertEquals(1, result[1]);
+        assertEquals(2, running[1]);
+        for (int i = 0; i < 5; i += 1) {
+            byte[] flash = sims.get(i).getFlash();
+            for (int j = 0; j < image.length; j += 1) {
+                assertEquals(image[j], flash[j]);
+            }
+        }
+    }
+
+    @Test
+    public void add_resumesAfterLinkDrops() throws Exception {
+        byte[] image = HexImages.randomImage(0x800, 42);
+        Firmware firmware = new Firmware();
+        assertTrue(firmware.load(HexImages.stream(HexImages.toHex(image, 0))));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] result = {0, 0, 0};
+        final BatchUpdater batch = new BatchUpdater(firmware, 1, loop, loop);
+        batch.setOnBatchEvent(new BatchUpdater.BatchEvent() {
+            @Override
+            public void onBatchComplete(int succeeded, int failed) {
+                result[0] = succeeded;
+                result[1] = failed;
+                result[2] += 1;
+                done.countDown();
+            }
+        });
+
+        Stk500Simulator sim = new Stk500Simulator(loop, DeviceProfile.ATMEGA328P, ATMEGA328P_SIGNATURE);
+        sim.setLinkDrop(5);
+        sims.add(sim);
+        batch.add(sim);
+
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(1, result[0]);
+        assertEquals(0, result[1]);
+        assertEquals(2, sim.getConnections());
+        byte[] flash = sim.getFlash();
+        for (int j = 0; j < image.length; j += 1) {
+            assertEquals(image[j], flash[j]);
+        }
+
+        // nothing is left to cancel, the batch is not reported complete again.
+        batch.cancel();
+        final CountDownLatch idle = new CountDownLatch(1);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        assertEquals(1, result[2]);
+    }
+}
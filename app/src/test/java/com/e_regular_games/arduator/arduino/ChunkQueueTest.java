@@ -0,0 +1,35 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkQueueTest {
+    @Test
+    public void nextChunk_joinsPacketsUpToChunkLength() {
+        ChunkQueue queue = new ChunkQueue();
+        assertTrue(queue.add(new byte[]{1, 2, 3}));
+        assertFalse(queue.add(new byte[]{4, 5, 6, 7, 8}));
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, queue.nextChunk(4));
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, queue.nextChunk(4));
+        assertTrue(queue.isWriting());
+        assertNull(queue.nextChunk(4));
+        assertFalse(queue.isWriting());
+        assertTrue(queue.add(new byte[]{9}));
+    }
+
+    @Test
+    public void clear_dropsPendingWriteWithTheLink() {
+        ChunkQueue queue = new ChunkQueue();
+        assertTrue(queue.add(new byte[]{1, 2, 3, 4, 5, 6}));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, queue.nextChunk(4));
+
+        // the link drops before the write is accepted, the next connection starts afresh.
+        queue.clear();
+        assertFalse(queue.isWriting());
+        assertTrue(queue.add(new byte[]{0x30, 0x20}));
+        assertArrayEquals(new byte[]{0x30, 0x20}, queue.nextChunk(4));
+        assertNull(queue.nextChunk(4));
+    }
+}
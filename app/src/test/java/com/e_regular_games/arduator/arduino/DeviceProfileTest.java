@@ -0,0 +1,30 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceProfileTest {
+    @Test
+    public void atmega328p_sendsLegacyParams() {
+        assertArrayEquals(new int[]{0x42, 0x86, 0x00, 0x00, 0x01, 0x01, 0x01, 0x01, 0x03, 0xFF, 0xFF, 0xFF, 0xFF, 0x00, 0x80, 0x04, 0x00, 0x00, 0x00, 0x80, 0x00, 0x20},
+                DeviceProfile.ATMEGA328P.getProgParams());
+        assertArrayEquals(new int[]{0x45, 0x05, 0x04, 0xD7, 0xC2, 0x00, 0x20},
+                DeviceProfile.ATMEGA328P.getExProgParams());
+        assertFalse(DeviceProfile.ATMEGA328P.needsExtendedAddress());
+        assertTrue(DeviceProfile.ATMEGA2560.needsExtendedAddress());
+    }
+
+    @Test
+    public void matchesSignature() {
+        ResponseBuffer response = new ResponseBuffer(8);
+        response.append(new byte[]{0x14, 0x1E, (byte) 0x95, 0x0F, 0x10}, 5);
+        assertTrue(DeviceProfile.ATMEGA328P.matchesSignature(response));
+        assertFalse(DeviceProfile.ATMEGA32U4.matchesSignature(response));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void withBlockSize_rejectsPartialPages() {
+        DeviceProfile.ATMEGA2560.withBlockSize(0x180);
+    }
+}
@@ -0,0 +1,112 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the heap cost of the byte[] firmware image against the ArrayList<Integer> image it
+ * replaced, using a full 32KB ATmega328P sketch. Results are printed, the assertions only guard
+ * against a regression back to boxed storage. The measurement is ignored in the normal test run,
+ * remove its @Ignore to run it.
+ */
+public class FirmwareBenchmark {
+    private static final int PAGE_LEN = 0x80;
+
+    @Ignore("benchmark")
+    @Test
+    public void allocation_atmega328p() throws Exception {
+        byte[] image = HexImages.randomImage(HexImages.ATMEGA328P_FLASH, 328);
+        String hex = HexImages.toHex(image, 0);
+
+        Firmware fw = primitiveImage(hex);
+
+        // warm up both paths so class loading and compilation are not counted.
+        for (int i = 0; i < 10; i += 1) {
+            readBoxedPages(boxedImage(image));
+            readPages(fw);
+        }
+
+        long boxedBytes = allocatedBytes();
+        ArrayList<Integer> boxed = boxedImage(image);
+        boxedBytes = allocatedBytes() - boxedBytes;
+
+        long boxedReadBytes = allocatedBytes();
+        readBoxedPages(boxed);
+        boxedReadBytes = allocatedBytes() - boxedReadBytes;
+
+        long pageReadBytes = allocatedBytes();
+        readPages(fw);
+        pageReadBytes = allocatedBytes() - pageReadBytes;
+
+        System.out.println("FirmwareBenchmark 32KB image, ArrayList<Integer>: " + boxedBytes
+                + " bytes to build, " + boxedReadBytes + " bytes to read all pages");
+        System.out.println("FirmwareBenchmark 32KB image, byte[]: " + fw.length()
+                + " bytes of image, " + pageReadBytes + " bytes to read all pages");
+
+        if (boxedBytes > 0) {
+            assertTrue(boxedBytes > 4 * image.length);
+            assertTrue(pageReadBytes < 4096);
+        }
+    }
+
+    @Test
+    public void pages_matchImage() {
+        byte[] image = HexImages.randomImage(1000, 1);
+        Firmware fw = primitiveImage(HexImages.toHex(image, 0));
+        assertEquals(image.length, fw.length());
+        assertEquals(8, fw.getPageCount(PAGE_LEN));
+
+        byte[] page = new byte[PAGE_LEN];
+        assertEquals(1000 - 7 * PAGE_LEN, fw.getPage(7, page));
+        for (int i = 0; i < PAGE_LEN; i += 1) {
+            int expected = 7 * PAGE_LEN + i < image.length ? 0xFF & image[7 * PAGE_LEN + i] : 0xFF;
+            assertEquals(expected, 0xFF & page[i]);
+        }
+    }
+
+    private static Firmware primitiveImage(String hex) {
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(hex)));
+        return fw;
+    }
+
+    private static void readPages(Firmware fw) {
+        byte[] page = new byte[PAGE_LEN];
+        for (int i = fw.nextPage(0, PAGE_LEN); i >= 0; i = fw.nextPage(i + 1, PAGE_LEN)) {
+            fw.getPage(i, page);
+        }
+    }
+
+    private static void readBoxedPages(ArrayList<Integer> bytes) {
+        int[] page = new int[PAGE_LEN];
+        for (int offset = 0; offset < bytes.size(); offset += PAGE_LEN) {
+            for (int i = 0; i < PAGE_LEN; i += 1) {
+                page[i] = offset + i < bytes.size() ? bytes.get(offset + i) : 0xFF;
+            }
+        }
+    }
+
+    /**
+     * The representation used before Firmware kept a byte[]; one Integer per byte.
+     */
+    private static ArrayList<Integer> boxedImage(byte[] image) {
+        ArrayList<Integer> bytes = new ArrayList<>();
+        for (byte b : image) {
+            bytes.add(0xFF & b);
+        }
+        return bytes;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,107 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class FirmwareCacheTest {
+    @Test
+    public void load_reusesFirmwareForSameContent() throws Exception {
+        FirmwareCache cache = new FirmwareCache(0x10000);
+        String hex = HexImages.toHex(HexImages.randomImage(0x800, 51), 0);
+
+        Firmware first = cache.load("content://a.hex", HexImages.stream(hex));
+        assertNull(first.getError());
+        assertSame(first, cache.load("content://a.hex", HexImages.stream(hex)));
+        assertEquals(1, cache.getHits());
+
+        // the file changed, so it is parsed again.
+        String changed = HexImages.toHex(HexImages.randomImage(0x800, 52), 0);
+        Firmware second = cache.load("content://a.hex", HexImages.stream(changed));
+        assertNotSame(first, second);
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void load_evictsLeastRecentlyUsed() throws Exception {
+        FirmwareCache cache = new FirmwareCache(0x2000);
+        String a = HexImages.toHex(HexImages.randomImage(0x1000, 53), 0);
+        String b = HexImages.toHex(HexImages.randomImage(0x1000, 54), 0);
+
+        Firmware fa = cache.load("a", HexImages.stream(a));
+        cache.load("b", HexImages.stream(b));
+        assertSame(fa, cache.load("a", HexImages.stream(a)));
+        // a third image pushes out b, which was used least recently.
+        cache.load("c", HexImages.stream(HexImages.toHex(HexImages.randomImage(0x100, 55), 0)));
+        assertSame(fa, cache.load("a", HexImages.stream(a)));
+        int misses = cache.getMisses();
+        cache.load("b", HexImages.stream(b));
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void load_doesNotCacheInvalidFirmware() throws Exception {
+        FirmwareCache cache = new FirmwareCache(0x10000);
+        assertNotNull(cache.load("bad", HexImages.stream("not hex\n")).getError());
+        assertNotNull(cache.load("bad", HexImages.stream("not hex\n")).getError());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void load_savesContainerForNextRun() throws Exception {
+        File dir = File.createTempFile("firmware", "");
+        assertTrue(dir.delete());
+        byte[] image = HexImages.randomImage(0x900, 56);
+        String hex = HexImages.toHex(image, 0x100);
+        try {
+            new FirmwareCache(0x10000, dir).load("a", HexImages.stream(hex));
+            File[] saved = dir.listFiles();
+            assertEquals(1, saved.length);
+            assertTrue(saved[0].getName().matches("[0-9a-f]{64}\\.afw")); // named by SHA-256.
+
+            // a new cache, as after a restart, maps the saved container.
+            Firmware fw = new FirmwareCache(0x10000, dir).load("a", HexImages.stream(hex));
+            assertNull(fw.getError());
+            assertEquals(0x100, fw.getStartAddress());
+            for (int i = 0; i < image.length; i += 1) {
+                assertEquals(0xFF & image[i], fw.getByte(0x100 + i));
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void load_deletesLeastRecentlyUsedContainers() throws Exception {
+        File dir = File.createTempFile("firmware", "");
+        assertTrue(dir.delete());
+        String a = HexImages.toHex(HexImages.randomImage(0x900, 57), 0);
+        String b = HexImages.toHex(HexImages.randomImage(0x900, 58), 0);
+        String c = HexImages.toHex(HexImages.randomImage(0x900, 59), 0);
+        try {
+            new FirmwareCache(0x10000, dir).load("a", HexImages.stream(a));
+            File savedA = dir.listFiles()[0];
+            // room for two containers of this size.
+            FirmwareCache cache = new FirmwareCache(0x10000, dir, savedA.length() * 5 / 2);
+            cache.load("b", HexImages.stream(b));
+            long now = System.currentTimeMillis();
+            for (File f : dir.listFiles()) {
+                f.setLastModified(f.equals(savedA) ? now - 20000 : now - 10000);
+            }
+
+            cache.load("c", HexImages.stream(c));
+            assertEquals(2, dir.listFiles().length);
+            assertFalse(savedA.exists());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class FirmwareReaderTest {
+    @Test
+    public void loadAny_readsBinaryImage() {
+        byte[] image = HexImages.randomImage(0x300, 61);
+        Firmware fw = new Firmware();
+        assertTrue(fw.loadAny(new ByteArrayInputStream(image)));
+        assertEquals(0, fw.getStartAddress());
+        assertEquals(image.length, fw.getEndAddress());
+        for (int i = 0; i < image.length; i += 1) {
+            assertEquals(0xFF & image[i], fw.getByte(i));
+        }
+    }
+
+    @Test
+    public void load_readsBinaryAtBaseAddress() {
+        byte[] image = HexImages.randomImage(0x100, 62);
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(new ByteArrayInputStream(image), new BinFirmwareReader(0x7E00)));
+        assertEquals(0x7E00, fw.getStartAddress());
+        assertEquals(0xFF & image[0xFF], fw.getByte(0x7EFF));
+    }
+
+    @Test
+    public void loadAny_readsHexAfterWhiteSpace() {
+        byte[] image = HexImages.randomImage(0x200, 63);
+        Firmware fw = new Firmware();
+        assertTrue(fw.loadAny(HexImages.stream("\r\n" + HexImages.toHex(image, 0x100))));
+        assertEquals(0x100, fw.getStartAddress());
+        assertEquals(0xFF & image[0], fw.getByte(0x100));
+    }
+
+    @Test
+    public void loadAny_readsFlashSegmentsOfElf() {
+        byte[] text = HexImages.randomImage(0x180, 64), data = HexImages.randomImage(0x20, 65);
+        // .data is stored in flash after .text, the RAM segment is skipped.
+        byte[] elf = elf(0x34, new int[][]{{0x800100, 0x20}, {0, text.length}, {text.length, data.length}},
+                new byte[][]{data, text, data});
+        Firmware fw = new Firmware();
+        assertTrue(fw.loadAny(new ByteArrayInputStream(elf)));
+        assertEquals(1, fw.getRanges().size());
+        assertEquals(text.length + data.length, fw.getEndAddress());
+        assertEquals(0x34, fw.getEntryPoint());
+        assertEquals(0xFF & text[5], fw.getByte(5));
+        assertEquals(0xFF & data[5], fw.getByte(text.length + 5));
+    }
+
+    @Test
+    public void loadAny_rejectsTruncatedElf() {
+        byte[] elf = elf(0, new int[][]{{0, 0x100}}, new byte[][]{new byte[0x100]});
+        byte[] truncated = new byte[elf.length - 0x10];
+        System.arraycopy(elf, 0, truncated, 0, truncated.length);
+        Firmware fw = new Firmware();
+        assertFalse(fw.loadAny(new ByteArrayInputStream(truncated)));
+        assertEquals(Firmware.ErrorCode.FW_Format, fw.getError());
+    }
+
+    @Test
+    public void loadAny_rejectsElfForOtherMachine() {
+        byte[] elf = elf(0, new int[][]{{0, 0x100}}, new byte[][]{new byte[0x100]});
+        elf[0x12] = 40; // EM_ARM
+        Firmware fw = new Firmware();
+        assertFalse(fw.loadAny(new ByteArrayInputStream(elf)));
+        assertEquals(Firmware.ErrorCode.FW_Format, fw.getError());
+        assertEquals(0, fw.length());
+    }
+
+    /**
+     * @param segments (physical address, length) of each PT_LOAD segment.
+     */
+    private static byte[] elf(int entry, int[][] segments, byte[][] contents) {
+        int phOff = 0x34, dataOff = phOff + 0x20 * segments.length, len = dataOff;
+        for (int[] s : segments) {
+            len += s[1];
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(new byte[]{0x7F, 'E', 'L', 'F', 1, 1, 1});
+        b.putShort(0x10, (short) 2);
+        b.putShort(0x12, (short) 0x53); // EM_AVR
+        b.putInt(0x18, entry);
+        b.putInt(0x1C, phOff);
+        b.putShort(0x28, (short) 0x34);
+        b.putShort(0x2A, (short) 0x20);
+        b.putShort(0x2C, (short) segments.length);
+
+        int offset = dataOff;
+        for (int i = 0; i < segments.length; i += 1) {
+            int ph = phOff + 0x20 * i;
+            b.putInt(ph, 1);
+            b.putInt(ph + 0x04, offset);
+            b.putInt(ph + 0x08, segments[i][0]);
+            b.putInt(ph + 0x0C, segments[i][0]);
+            b.putInt(ph + 0x10, segments[i][1]);
+            b.putInt(ph + 0x14, segments[i][1]);
+            b.position(offset);
+            b.put(contents[i], 0, segments[i][1]);
+            offset += segments[i][1];
+        }
+        return b.array();
+    }
+}
@@ -0,0 +1,183 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class FirmwareTest {
+    @Test
+    public void load_matchesImage() {
+        byte[] image = HexImages.randomImage(0x1234, 7);
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(HexImages.toHex(image, 0))));
+        assertEquals(0, fw.getStartAddress());
+        assertEquals(image.length, fw.length());
+        for (int i = 0; i < image.length; i += 1) {
+            assertEquals(0xFF & image[i], fw.getByte(i));
+        }
+    }
+
+    @Test
+    public void load_acceptsLowerCaseAndBareNewlines() {
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(":0400000001abcdef94\n:00000001FF\n")));
+        assertEquals(4, fw.length());
+        assertEquals(0xEF, fw.getByte(3));
+    }
+
+    @Test
+    public void load_reportsChecksumLine() {
+        String hex = HexImages.toHex(HexImages.randomImage(64, 3), 0);
+        int third = hex.indexOf(':', hex.indexOf(':', hex.indexOf(':') + 1) + 1);
+        char last = hex.charAt(third + 42);
+        String bad = hex.substring(0, third + 42) + (last == '0' ? '1' : '0') + hex.substring(third + 43);
+
+        Firmware fw = new Firmware();
+        assertFalse(fw.load(HexImages.stream(bad)));
+        assertEquals(Firmware.ErrorCode.FW_CheckSum, fw.getError());
+        assertEquals(3, fw.getErrorLine());
+    }
+
+    @Test
+    public void load_keepsSparseRanges() {
+        byte[] app = HexImages.randomImage(300, 4);
+        byte[] boot = HexImages.randomImage(0x200, 5);
+        String hex = HexImages.toHex(app, 0);
+        hex = hex.substring(0, hex.lastIndexOf(':')) + HexImages.toHex(boot, 0x7E00);
+
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(hex)));
+        assertEquals(2, fw.getRanges().size());
+        assertEquals(0x7E00, fw.getRanges().get(1).start);
+        assertEquals(0x8000, fw.getEndAddress());
+        assertEquals(300 + 0x200, fw.length());
+        assertEquals(fw.length(), fw.getMemorySize()); // nothing is held for the gap.
+
+        // 3 pages for the app, 4 for the bootloader, nothing in between.
+        assertEquals(7, fw.getPageCount(0x80));
+        assertEquals(2, fw.nextPage(2, 0x80));
+        assertEquals(0xFC, fw.nextPage(3, 0x80));
+        assertEquals(-1, fw.nextPage(0x100, 0x80));
+
+        byte[] page = new byte[0x80];
+        fw.getPage(2, page);
+        assertEquals(0xFF & app[0x100], 0xFF & page[0]);
+        assertEquals(0xFF, 0xFF & page[300 - 0x100]);
+        fw.getPage(0xFC, page);
+        assertEquals(0xFF & boot[0], 0xFF & page[0]);
+    }
+
+    @Test
+    public void load_appliesExtendedAddresses() {
+        StringBuilder sb = new StringBuilder();
+        HexImages.appendRecord(sb, 2, 0, 0x04, new byte[]{0x00, 0x01}, 0);
+        HexImages.appendRecord(sb, 4, 0x0010, 0x00, new byte[]{1, 2, 3, 4}, 0);
+        HexImages.appendRecord(sb, 2, 0, 0x02, new byte[]{0x20, 0x00}, 0);
+        HexImages.appendRecord(sb, 2, 0x0004, 0x00, new byte[]{5, 6}, 0);
+        HexImages.appendRecord(sb, 4, 0, 0x05, new byte[]{0x00, 0x01, 0x00, 0x10}, 0);
+        HexImages.appendRecord(sb, 0, 0, 0x01, new byte[0], 0);
+
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(sb.toString())));
+        assertEquals(0x10010, fw.getStartAddress());
+        assertEquals(4, fw.getByte(0x10013));
+        assertEquals(6, fw.getByte(0x20005));
+        assertEquals(6, fw.getMemorySize());
+        assertEquals(0x10010, fw.getEntryPoint());
+    }
+
+    @Test
+    public void load_rejectsOverlappingRecords() {
+        StringBuilder sb = new StringBuilder();
+        HexImages.appendRecord(sb, 4, 0x0010, 0x00, new byte[]{1, 2, 3, 4}, 0);
+        HexImages.appendRecord(sb, 4, 0x0012, 0x00, new byte[]{1, 2, 3, 4}, 0);
+
+        Firmware fw = new Firmware();
+        assertFalse(fw.load(HexImages.stream(sb.toString())));
+        assertEquals(Firmware.ErrorCode.FW_ContiguousAddressing, fw.getError());
+        assertEquals(2, fw.getErrorLine());
+    }
+
+    @Test
+    public void load_rejectsMalformedRecords() {
+        Firmware fw = new Firmware();
+        assertFalse(fw.load(HexImages.stream(":00000001FF\r\n1000\r\n")));
+        assertEquals(Firmware.ErrorCode.FW_StartCode, fw.getError());
+        assertEquals(2, fw.getErrorLine());
+
+        fw = new Firmware();
+        assertFalse(fw.load(HexImages.stream(":0400000001ABCDXF75\r\n")));
+        assertEquals(Firmware.ErrorCode.FW_Format, fw.getError());
+
+        fw = new Firmware();
+        assertFalse(fw.load(HexImages.stream(":0400000001ABCD75\r\n")));
+        assertEquals(Firmware.ErrorCode.FW_Format, fw.getError());
+    }
+
+    @Test
+    public void loadContainer_matchesWrittenFirmware() throws Exception {
+        byte[] app = HexImages.randomImage(300, 8);
+        byte[] boot = HexImages.randomImage(0x200, 9);
+        String hex = HexImages.toHex(app, 0);
+        hex = hex.substring(0, hex.lastIndexOf(':')) + HexImages.toHex(boot, 0x7E00);
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(hex)));
+
+        File file = writeContainer(fw, DeviceProfile.ATMEGA328P);
+        try {
+            // 3 pages for the app and 4 for the bootloader after a 1 page header.
+            assertEquals(8 * 0x80, file.length());
+
+            Firmware mapped = new Firmware();
+            assertTrue(mapped.loadContainer(file));
+            assertArrayEquals(DeviceProfile.ATMEGA328P.getSignature(), mapped.getTargetSignature());
+            assertEquals(2, mapped.getRanges().size());
+            assertEquals(fw.length(), mapped.length());
+            for (int pageLen : new int[]{0x40, 0x80, 0x100}) {
+                byte[] expected = new byte[pageLen], actual = new byte[pageLen];
+                for (int page = 0; page < 0x8000 / pageLen; page += 1) {
+                    assertEquals(fw.getPage(page, expected), mapped.getPage(page, actual));
+                    assertArrayEquals(expected, actual);
+                    assertEquals(FlashCache.hash(expected), mapped.getPageHash(page, actual));
+                }
+            }
+            assertEquals(0xFF & boot[5], mapped.getByte(0x7E05));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void loadContainer_rejectsCorruptPage() throws Exception {
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(HexImages.toHex(HexImages.randomImage(0x400, 10), 0))));
+        File file = writeContainer(fw, null);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(file.length() - 1);
+            int last = raf.read();
+            raf.seek(file.length() - 1);
+            raf.write(last ^ 1);
+            raf.close();
+
+            Firmware mapped = new Firmware();
+            assertFalse(mapped.loadContainer(file));
+            assertEquals(Firmware.ErrorCode.FW_CheckSum, mapped.getError());
+            assertFalse(new Firmware().loadContainer(new File(file.getPath() + ".missing")));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File writeContainer(Firmware fw, DeviceProfile profile) throws Exception {
+        File file = File.createTempFile("firmware", ".afw");
+        FileOutputStream out = new FileOutputStream(file);
+        fw.writeContainer(out, profile);
+        out.close();
+        return file;
+    }
+}
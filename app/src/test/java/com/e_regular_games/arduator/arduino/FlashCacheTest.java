@@ -0,0 +1,29 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class FlashCacheTest {
+    @Test
+    public void put_survivesNewCacheOnSameFile() throws Exception {
+        File file = File.createTempFile("flash", ".cache");
+        try {
+            long[] hashes = {FlashCache.UNKNOWN, 0x12345678L, 0xFFFFFFFFL};
+            new FlashCache(file).put("00:11:22:33:44:55", 0x80, hashes);
+
+            FlashCache cache = new FlashCache(file);
+            assertEquals(0, cache.take("00:11:22:33:44:55", 0x100).length);
+            assertEquals(0, new FlashCache(file).take("00:11:22:33:44:55", 0x80).length);
+
+            new FlashCache(file).put("00:11:22:33:44:55", 0x80, hashes);
+            assertArrayEquals(hashes, new FlashCache(file).take("00:11:22:33:44:55", 0x80));
+            // taking a device forgets it, also on disk.
+            assertEquals(0, new FlashCache(file).take("00:11:22:33:44:55", 0x80).length);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Builds synthetic firmware images and their Intel HEX encoding for unit tests and benchmarks.
+ * The encoding matches avr-objcopy output: 16 data bytes per record and an EOF record.
+ */
+class HexImages {
+    static final int ATMEGA328P_FLASH = 0x8000;
+
+    static byte[] randomImage(int length, long seed) {
+        byte[] image = new byte[length];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    static String toHex(byte[] image, int startAddress) {
+        StringBuilder sb = new StringBuilder(image.length * 3);
+        int upper = 0;
+        for (int offset = 0; offset < image.length; offset += 16) {
+            int len = Math.min(16, image.length - offset);
+            int address = startAddress + offset;
+            if ((address >>> 16) != upper) {
+                upper = address >>> 16;
+                appendRecord(sb, 2, 0, 0x04, new byte[]{(byte) (upper >> 8), (byte) upper}, 0);
+            }
+            appendRecord(sb, len, address & 0xFFFF, 0x00, image, offset);
+        }
+        appendRecord(sb, 0, 0, 0x01, image, 0);
+        return sb.toString();
+    }
+
+    static void appendRecord(StringBuilder sb, int len, int address, int type, byte[] data, int offset) {
+        int sum = len + (address >> 8) + (address & 0xFF) + type;
+        sb.append(':');
+        appendByte(sb, len);
+        appendByte(sb, address >> 8);
+        appendByte(sb, address);
+        appendByte(sb, type);
+        for (int i = 0; i < len; i += 1) {
+            int b = 0xFF & data[offset + i];
+            sum += b;
+            appendByte(sb, b);
+        }
+        appendByte(sb, 0x100 - (sum & 0xFF));
+        sb.append("\r\n");
+    }
+
+    static InputStream stream(String hex) {
+        return new ByteArrayInputStream(hex.getBytes(Charset.forName("US-ASCII")));
+    }
+
+    private static void appendByte(StringBuilder sb, int b) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+}
@@ -0,0 +1,83 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput (MB/s of hex text) and allocation per record of Firmware.load against the String
+ * based LegacyHexParser. A small hand rolled harness is used since the Android build has no JMH;
+ * each parser is warmed up before it is measured. Ignored in the normal test run, remove the
+ * @Ignore to run it.
+ */
+@Ignore("benchmark")
+public class HexParserBenchmark {
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 50;
+
+    @Test
+    public void parse_atmega328p() throws Exception {
+        byte[] image = HexImages.randomImage(HexImages.ATMEGA328P_FLASH, 2);
+        byte[] hex = HexImages.toHex(image, 0).getBytes(Charset.forName("US-ASCII"));
+        int records = image.length / 16 + 1;
+
+        Result legacy = measure(hex, records, true);
+        Result current = measure(hex, records, false);
+
+        System.out.println("HexParserBenchmark legacy:  " + legacy);
+        System.out.println("HexParserBenchmark current: " + current);
+
+        if (current.bytesPerRecord >= 0) {
+            assertTrue(current.bytesPerRecord < legacy.bytesPerRecord);
+        }
+    }
+
+    private static class Result {
+        double mbPerSecond;
+        long bytesPerRecord;
+
+        public String toString() {
+            return String.format("%.1f MB/s, %d bytes allocated per record", mbPerSecond, bytesPerRecord);
+        }
+    }
+
+    private static Result measure(byte[] hex, int records, boolean legacy) throws Exception {
+        for (int i = 0; i < WARMUP; i += 1) {
+            parse(hex, legacy);
+        }
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i += 1) {
+            parse(hex, legacy);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+
+        Result r = new Result();
+        r.mbPerSecond = (hex.length * (double) ITERATIONS / (1024 * 1024)) / (elapsed / 1e9);
+        r.bytesPerRecord = allocated < 0 ? -1 : allocated / ((long) ITERATIONS * records);
+        return r;
+    }
+
+    private static void parse(byte[] hex, boolean legacy) throws Exception {
+        if (legacy) {
+            assertTrue(new LegacyHexParser().load(new ByteArrayInputStream(hex)));
+        } else {
+            assertTrue(new Firmware().load(new ByteArrayInputStream(hex)));
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,76 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * The String based Intel HEX parser Firmware.load used before it decoded records in place. Kept
+ * only as the baseline for HexParserBenchmark.
+ */
+class LegacyHexParser {
+    ArrayList<Integer> bytes = new ArrayList<>();
+    int startAddress = 0;
+
+    boolean load(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+        String line;
+        boolean firstLine = true;
+        int nextAddress = 0;
+        while ((line = reader.readLine()) != null) {
+            if (line.charAt(0) != ':') {
+                return false;
+            }
+
+            int dataLen = toInt(line.substring(1, 3));
+            int lineLen = 2 * dataLen;
+            int address = toInt(line.substring(3, 7));
+            int checkSum = toInt(line.substring(1 + lineLen + 8, 1 + lineLen + 8 + 2));
+            if (dataLen == 0 && address == 0 && toInt(line.substring(7, 8)) == 0) {
+                //last line
+            } else if (firstLine) {
+                startAddress = address;
+            } else if (address != nextAddress) {
+                return false;
+            }
+
+            if (!verifyChecksum(line.substring(1, 1 + lineLen + 8), checkSum)) {
+                return false;
+            }
+
+            for (int i = 0; i < dataLen; i += 1) {
+                bytes.add(toInt(line.substring(9 + 2 * i, 9 + 2 * i + 2)));
+            }
+
+            firstLine = false;
+            nextAddress = address + dataLen;
+        }
+
+        in.close();
+        return true;
+    }
+
+    private boolean verifyChecksum(String lineWithoutSum, int sum) {
+        if (lineWithoutSum.length() % 2 == 1) {
+            return false;
+        }
+
+        int runningSum = 0;
+        for (int i = 0; i < lineWithoutSum.length(); i += 2) {
+            runningSum += toInt(lineWithoutSum.substring(i, i + 2));
+        }
+
+        return sum == (0xFF & (0x100 - runningSum));
+    }
+
+    private int toInt(String hex) {
+        if ((hex.length() % 2) == 1) {
+            return 0;
+        }
+
+        return Integer.parseInt(hex, 16);
+    }
+}
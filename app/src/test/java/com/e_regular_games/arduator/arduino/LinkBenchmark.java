@@ -0,0 +1,76 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * End to end upload time through Stk500Simulator over a Bluetooth Low-Energy link, for the
+ * connection intervals of Android's HIGH and BALANCED priorities and for the default and a
+ * negotiated MTU. The image is small so the whole run takes seconds, the relative times are what
+ * matter. Ignored in the normal test run, remove the @Ignore to run it.
+ */
+@Ignore("benchmark")
+public class LinkBenchmark {
+    private static final int IMAGE_LEN = 0x400;
+    private static final int HIGH_INTERVAL_MS = 15, BALANCED_INTERVAL_MS = 45;
+
+    @Test
+    public void upload_intervalAndMtu() throws Exception {
+        long balanced = measure(BALANCED_INTERVAL_MS, 20, 0);
+        long high = measure(HIGH_INTERVAL_MS, 20, 0);
+        long highLargeMtu = measure(HIGH_INTERVAL_MS, 182, 0);
+        long highLargeMtuPipelined = measure(HIGH_INTERVAL_MS, 182, 1);
+
+        assertTrue(high < balanced);
+        assertTrue(highLargeMtu <= high);
+        assertTrue(highLargeMtuPipelined < highLargeMtu);
+    }
+
+    /**
+     * @return milliseconds from upload until Complete.
+     */
+    private static long measure(int intervalMs, int mtu, int window) throws Exception {
+        ExecutorEventLoop loop = new ExecutorEventLoop("Updater");
+        Stk500Simulator sim = new Stk500Simulator(loop, DeviceProfile.ATMEGA328P, new int[]{0x1E, 0x95, 0x0F});
+        try {
+            sim.setMtu(mtu);
+            sim.setLink(intervalMs, 4);
+            ArduinoCommUpdater updater = new ArduinoCommUpdater(sim, loop, loop);
+            updater.setPipelineWindow(window);
+
+            final CountDownLatch done = new CountDownLatch(1);
+            updater.setOnStatus(new ArduinoCommUpdater.OnStatus() {
+                @Override
+                public void onError(ArduinoCommUpdater.ErrorCode code) {
+                }
+
+                @Override
+                public void onStatus(ArduinoCommUpdater.StatusCode progress) {
+                    if (progress == ArduinoCommUpdater.StatusCode.Complete
+                            || progress == ArduinoCommUpdater.StatusCode.Disconnected) {
+                        done.countDown();
+                    }
+                }
+            });
+
+            long start = System.nanoTime();
+            updater.upload(HexImages.stream(HexImages.toHex(HexImages.randomImage(IMAGE_LEN, 31), 0)));
+            assertTrue(done.await(60, TimeUnit.SECONDS));
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            assertTrue(updater.success());
+            assertFalse(sim.isHighThroughput()); // dropped back once complete.
+
+            System.out.println(String.format("LinkBenchmark interval %d ms, mtu %d, window %d: %d ms, %d us reported",
+                    intervalMs, mtu, window, elapsed, updater.getConnectionInterval()));
+            return elapsed;
+        } finally {
+            sim.shutdown();
+            loop.shutdown();
+        }
+    }
+}
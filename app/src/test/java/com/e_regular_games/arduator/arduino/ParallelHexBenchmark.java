@@ -0,0 +1,79 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput (MB/s of hex text) of ParallelHexReader against Firmware.load over 64KB, 256KB and
+ * 1MB of synthetic hex text. Results are printed, the assertions only check both loads succeed.
+ * Ignored in the normal test run, remove the @Ignore to run it.
+ */
+@Ignore("benchmark")
+public class ParallelHexBenchmark {
+    private static final int WARMUP = 10;
+    private static final int ITERATIONS = 20;
+    // each record of 16 data bytes is 45 characters of hex.
+    private static final int RECORD_CHARS = 45;
+
+    @Test
+    public void parse_64KB() {
+        run(0x10000);
+    }
+
+    @Test
+    public void parse_256KB() {
+        run(0x40000);
+    }
+
+    @Test
+    public void parse_1MB() {
+        run(0x100000);
+    }
+
+    private static void run(int hexLen) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        // whole records, rounded up so the text is at least hexLen long.
+        byte[] image = HexImages.randomImage((hexLen + RECORD_CHARS - 1) / RECORD_CHARS * 16, hexLen);
+        byte[] hex = HexImages.toHex(image, 0).getBytes(Charset.forName("US-ASCII"));
+        assertTrue(hex.length >= hexLen);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            double serial = measure(hex, null);
+            double parallel = measure(hex, new ParallelHexReader(pool, threads));
+            System.out.println(String.format("ParallelHexBenchmark %dKB (%d bytes): serial %.1f MB/s, %d threads %.1f MB/s",
+                    hexLen / 1024, hex.length, serial, threads, parallel));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static double measure(byte[] hex, FirmwareReader reader) {
+        for (int i = 0; i < WARMUP; i += 1) {
+            parse(hex, reader);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i += 1) {
+            parse(hex, reader);
+        }
+        long elapsed = System.nanoTime() - start;
+        return (hex.length * (double) ITERATIONS / (1024 * 1024)) / (elapsed / 1e9);
+    }
+
+    private static void parse(byte[] hex, FirmwareReader reader) {
+        Firmware fw = new Firmware();
+        if (reader == null) {
+            assertTrue(fw.load(new ByteArrayInputStream(hex)));
+        } else {
+            assertTrue(fw.load(new ByteArrayInputStream(hex), reader));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ParallelHexReaderTest {
+    private ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void read_matchesSerialLoad() {
+        // an ATmega2560 sized image, which needs extended address records across chunks.
+        byte[] image = HexImages.randomImage(0x3F000, 71);
+        String hex = HexImages.toHex(image, 0x800);
+        Firmware fw = new Firmware();
+        assertTrue(fw.load(HexImages.stream(hex), new ParallelHexReader(pool, 4)));
+        assertEquals(0x800, fw.getStartAddress());
+        assertEquals(0x800 + image.length, fw.getEndAddress());
+        for (int i = 0; i < image.length; i += 1) {
+            assertEquals(0xFF & image[i], fw.getByte(0x800 + i));
+        }
+    }
+
+    @Test
+    public void read_reportsFirstErrorLine() {
+        String hex = HexImages.toHex(HexImages.randomImage(0x20000, 72), 0);
+        String[] lines = hex.split("\n", -1);
+        // the checksums of two lines in different chunks, only the first is reported.
+        lines[5000] = lines[5000].substring(0, 9) + flip(lines[5000].charAt(9)) + lines[5000].substring(10);
+        lines[7000] = lines[7000].substring(0, 9) + flip(lines[7000].charAt(9)) + lines[7000].substring(10);
+        hex = join(lines);
+
+        Firmware serial = new Firmware(), parallel = new Firmware();
+        assertFalse(serial.load(HexImages.stream(hex)));
+        assertFalse(parallel.load(HexImages.stream(hex), new ParallelHexReader(pool, 4)));
+        assertEquals(Firmware.ErrorCode.FW_CheckSum, parallel.getError());
+        assertEquals(5001, parallel.getErrorLine());
+        assertEquals(serial.getErrorLine(), parallel.getErrorLine());
+    }
+
+    @Test
+    public void read_rejectsOverlapBetweenChunks() {
+        byte[] image = HexImages.randomImage(0x8000, 73);
+        String hex = HexImages.toHex(image, 0);
+        // the same records again, so a later chunk overlaps the data of an earlier one.
+        hex = hex.substring(0, hex.lastIndexOf(':')) + hex;
+
+        Firmware fw = new Firmware();
+        assertFalse(fw.load(HexImages.stream(hex), new ParallelHexReader(pool, 4)));
+        assertEquals(Firmware.ErrorCode.FW_ContiguousAddressing, fw.getError());
+        assertEquals(image.length / 16 + 1, fw.getErrorLine());
+    }
+
+    private static char flip(char c) {
+        return c == '0' ? '1' : '0';
+    }
+
+    private static String join(String[] lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.length; i += 1) {
+            sb.append(lines[i]);
+            if (i < lines.length - 1) {
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
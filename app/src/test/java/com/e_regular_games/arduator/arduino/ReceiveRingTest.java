@@ -0,0 +1,67 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReceiveRingTest {
+    @Test
+    public void read_returnsBytesInOrderAcrossThreads() throws Exception {
+        final byte[] sent = HexImages.randomImage(0x40000, 21);
+        final ReceiveRing ring = new ReceiveRing(0x100);
+
+        // a socket returning short reads of random length, as Bluetooth does.
+        final InputStream socket = new InputStream() {
+            private int at = 0;
+            private Random lengths = new Random(22);
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (at == sent.length) {
+                    return -1;
+                }
+                int n = Math.min(Math.min(len, 1 + lengths.nextInt(60)), sent.length - at);
+                System.arraycopy(sent, at, b, off, n);
+                at += n;
+                return n;
+            }
+        };
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (ring.write(socket) >= 0) {
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        ByteArrayOutputStream got = new ByteArrayOutputStream();
+        byte[] chunk = new byte[37];
+        while (got.size() < sent.length) {
+            int n = ring.read(chunk);
+            got.write(chunk, 0, n);
+            if (n == 0) {
+                Thread.yield();
+            }
+        }
+        writer.join(5000);
+
+        assertTrue(ring.isEmpty());
+        assertArrayEquals(sent, got.toByteArray());
+    }
+}
@@ -0,0 +1,46 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResponseBufferTest {
+    @Test
+    public void skipTo_dropsNoiseBeforeMarker() {
+        ResponseBuffer buf = new ResponseBuffer(4);
+        buf.append(new byte[]{0x00, 0x7F, 0x14, 0x10}, 4);
+        assertTrue(buf.skipTo((byte) 0x14));
+        assertEquals(2, buf.size());
+        assertEquals(0x10, buf.get(1));
+
+        buf.skip(2);
+        buf.append(new byte[]{0x01, 0x02}, 2);
+        assertFalse(buf.skipTo((byte) 0x14));
+        assertEquals(0, buf.size());
+    }
+
+    @Test
+    public void matches_acrossWrapAndGrowth() {
+        ResponseBuffer buf = new ResponseBuffer(8);
+        buf.append(new byte[]{1, 2, 3, 4, 5, 6}, 6);
+        buf.skip(5);
+
+        // wraps the end of the ring, then forces it to grow while wrapped.
+        byte[] page = new byte[20];
+        for (int i = 0; i < page.length; i += 1) {
+            page[i] = (byte) (0x80 + i);
+        }
+        buf.append(page, 5);
+        buf.append(new byte[]{page[5], page[6]}, 2);
+        byte[] rest = new byte[page.length - 7];
+        System.arraycopy(page, 7, rest, 0, rest.length);
+        buf.append(rest, rest.length);
+
+        assertEquals(21, buf.size());
+        assertEquals(6, buf.get(0));
+        assertTrue(buf.matches(1, page, page.length));
+        page[19] = 0;
+        assertFalse(buf.matches(1, page, page.length));
+        assertFalse(buf.matches(2, page, page.length));
+    }
+}
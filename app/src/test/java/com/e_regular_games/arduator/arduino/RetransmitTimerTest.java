@@ -0,0 +1,45 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetransmitTimerTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void getTimeout_followsRoundTrips() {
+        RetransmitTimer timer = new RetransmitTimer(1000, 100, 8000);
+        assertEquals(1000, timer.getTimeout());
+
+        // steady 20ms round trips settle to the minimum.
+        for (int i = 0; i < 20; i += 1) {
+            timer.addSample(20 * MS);
+        }
+        assertEquals(100, timer.getTimeout());
+        assertEquals(20.0, timer.getSmoothedRtt(), 0.5);
+
+        // slow, varying round trips raise the timeout above the slowest of them.
+        for (int i = 0; i < 20; i += 1) {
+            timer.addSample((i % 2 == 0 ? 400 : 900) * MS);
+        }
+        assertTrue(timer.getTimeout() > 900);
+        assertTrue(timer.getTimeout() <= 8000);
+    }
+
+    @Test
+    public void backOff_doublesUntilMax() {
+        RetransmitTimer timer = new RetransmitTimer(1000, 100, 8000);
+        timer.backOff();
+        assertEquals(2000, timer.getTimeout());
+        timer.backOff();
+        timer.backOff();
+        timer.backOff();
+        assertEquals(8000, timer.getTimeout());
+
+        timer.addSample(50 * MS);
+        assertEquals(150, timer.getTimeout());
+        timer.reset();
+        assertEquals(1000, timer.getTimeout());
+    }
+}
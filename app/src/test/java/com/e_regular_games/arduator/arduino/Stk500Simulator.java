@@ -0,0 +1,358 @@
+package com.e_regular_games.arduator.arduino;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ArduinoComm connected to an emulated Optiboot (STK500v1) bootloader, so the updater can be
+ * exercised without a phone or any hardware. Responses are delivered from a separate thread after
+ * the configured latency, split into packets no longer than the MTU. Faults are drawn from a
+ * seeded Random so a run can be repeated exactly.
+ */
+public class Stk500Simulator extends ArduinoComm {
+    /**
+     * @param events where EventHandlers are called.
+     */
+    public Stk500Simulator(Executor events, DeviceProfile profile, int[] signature) {
+        super(events);
+        this.profile = profile;
+        this.signature = Arrays.copyOf(signature, 3);
+        flash = new byte[profile.getFlashSize()];
+        Arrays.fill(flash, (byte) 0xFF);
+    }
+
+    /**
+     * @param latencyMs delay between receiving a command and its response arriving.
+     */
+    public void setLatency(int latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * @param mtu the longest packet a response is delivered in.
+     */
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * Model a Bluetooth Low-Energy link, which only carries data at connection events. Each
+     * direction carries up to packetsPerEvent packets of at most the MTU at each event.
+     * @param intervalMs time between connection events, 0 for a link without events.
+     */
+    public void setLink(int intervalMs, int packetsPerEvent) {
+        this.intervalMs = intervalMs;
+        this.packetsPerEvent = packetsPerEvent;
+    }
+
+    /**
+     * @param seed seeds the faults, so a run is repeatable.
+     * @param dropRate chance of each response byte being lost.
+     * @param corruptRate chance of each response having one byte changed.
+     */
+    public void setFaults(long seed, double dropRate, double corruptRate) {
+        random = new Random(seed);
+        this.dropRate = dropRate;
+        this.corruptRate = corruptRate;
+    }
+
+    /**
+     * Drop the link while the response to a page being programmed is on its way, as a module
+     * moving out of range would. The page is written to flash but never acknowledged.
+     * @param afterPages the number of pages programmed before the link drops, once only.
+     */
+    public void setLinkDrop(int afterPages) {
+        dropAfterPages = afterPages;
+    }
+
+    @Override
+    public String getName() {
+        return "Simulator";
+    }
+
+    @Override
+    public String getAddress() {
+        return "00:00:00:00:00:00";
+    }
+
+    public byte[] getFlash() {
+        return flash;
+    }
+
+    public int getPagesProgrammed() {
+        return pagesProgrammed;
+    }
+
+    public int getPagesRead() {
+        return pagesRead;
+    }
+
+    public int getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public void setHighThroughput(boolean high) {
+        highThroughput = high;
+    }
+
+    public boolean isHighThroughput() {
+        return highThroughput;
+    }
+
+    @Override
+    public int getConnectionInterval() {
+        return intervalMs > 0 ? intervalMs * 1000 : -1;
+    }
+
+    /**
+     * @return the number of connections made. Each has a radio thread of its own, which ends
+     * with the connection, as a Bluetooth Classic connection thread does.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    @Override
+    public void connect() {
+        synchronized (this) {
+            linkUp = true;
+            received = 0;
+            extended = 0;
+            connections += 1;
+            radio = Executors.newSingleThreadScheduledExecutor();
+        }
+        onStatus(StatusCode.Connecting);
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onStatus(StatusCode.Connected);
+            }
+        }, latencyMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close the link at once, dropping any responses on their way, and report it before
+     * returning as ArduinoCommBt does. A connect which follows never sees the Disconnected.
+     */
+    @Override
+    public synchronized void disconnect() {
+        onStatus(StatusCode.Disconnecting);
+        linkUp = false;
+        radio.shutdownNow();
+        onStatus(StatusCode.Disconnected);
+    }
+
+    @Override
+    public synchronized void send(byte[] packet) {
+        if (!linkUp) {
+            return;
+        }
+        bytesSent += packet.length;
+        arrival = Math.max(System.currentTimeMillis(), upFree) + transferTime(packet.length);
+        upFree = arrival;
+        if (received + packet.length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, received + packet.length));
+        }
+        System.arraycopy(packet, 0, pending, received, packet.length);
+        received += packet.length;
+
+        int used;
+        while (linkUp && (used = execute()) > 0) {
+            System.arraycopy(pending, used, pending, 0, received - used);
+            received -= used;
+        }
+        if (!linkUp) {
+            received = 0; // whatever followed was lost with the link.
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (radio != null) {
+            radio.shutdownNow();
+        }
+    }
+
+    private final DeviceProfile profile;
+    private final int[] signature;
+    private final byte[] flash;
+    private byte[] pending = new byte[0x200];
+    private int received = 0;
+    private int address = 0, extended = 0;
+    private int pagesProgrammed = 0, pagesRead = 0, bytesSent = 0;
+    private int latencyMs = 0, mtu = 20, intervalMs = 0, packetsPerEvent = 1;
+    // when the packet being executed arrived, and when each direction of the link is next free.
+    private long arrival = 0, upFree = 0, downFree = 0;
+    private boolean highThroughput = false, linkUp = true;
+    private int dropAfterPages = 0;
+    private double dropRate = 0, corruptRate = 0;
+    private Random random = new Random(0);
+    private int connections = 0;
+    private ScheduledExecutorService radio;
+
+    private static final int STK_OK = 0x10, STK_INSYNC = 0x14, STK_NOSYNC = 0x15, CRC_EOP = 0x20;
+
+    /**
+     * Execute the command at the start of pending, if all of it has been received.
+     * @return the number of bytes used, 0 if the command is incomplete.
+     */
+    private int execute() {
+        if (received == 0) {
+            return 0;
+        }
+
+        int length = getCommandLength();
+        if (length == 0 || received < length) {
+            return 0;
+        } else if (length == 1) {
+            return 1; // not a command, Optiboot ignores it until it resynchronizes.
+        }
+
+        if (pending[length - 1] != CRC_EOP) {
+            // Optiboot would reset here, reporting the lost sync lets the updater retry instead.
+            respond(new byte[]{STK_NOSYNC});
+            return 1;
+        }
+
+        int cmd = 0xFF & pending[0];
+        switch (cmd) {
+            case 0x41:
+                int param = 0xFF & pending[1];
+                respond(new byte[]{STK_INSYNC, (byte) (param == 0x81 || param == 0x82 ? 0x04 : 0x03), STK_OK});
+                break;
+            case 0x55:
+                address = (0xFF & pending[1]) | ((0xFF & pending[2]) << 8);
+                respond(new byte[]{STK_INSYNC, STK_OK});
+                break;
+            case 0x56:
+                if ((0xFF & pending[1]) == 0x4D) {
+                    extended = 0xFF & pending[3];
+                }
+                respond(new byte[]{STK_INSYNC, 0x00, STK_OK});
+                break;
+            case 0x64:
+                int writeLen = ((0xFF & pending[1]) << 8) | (0xFF & pending[2]);
+                int writeAt = getByteAddress();
+                System.arraycopy(pending, 4, flash, writeAt, Math.min(writeLen, flash.length - writeAt));
+                pagesProgrammed += Math.max(1, writeLen / profile.getPageSize());
+                if (dropAfterPages > 0 && pagesProgrammed >= dropAfterPages) {
+                    dropLink();
+                } else {
+                    respond(new byte[]{STK_INSYNC, STK_OK});
+                }
+                break;
+            case 0x74:
+                int readLen = ((0xFF & pending[1]) << 8) | (0xFF & pending[2]);
+                byte[] reply = new byte[readLen + 2];
+                reply[0] = STK_INSYNC;
+                System.arraycopy(flash, getByteAddress(), reply, 1, readLen);
+                reply[readLen + 1] = STK_OK;
+                pagesRead += Math.max(1, readLen / profile.getPageSize());
+                respond(reply);
+                break;
+            case 0x75:
+                respond(new byte[]{STK_INSYNC, (byte) signature[0], (byte) signature[1], (byte) signature[2], STK_OK});
+                break;
+            default:
+                respond(new byte[]{STK_INSYNC, STK_OK});
+                break;
+        }
+        return length;
+    }
+
+    private void dropLink() {
+        dropAfterPages = 0;
+        linkUp = false;
+        endConnection();
+    }
+
+    /**
+     * Report the link as dropped after any responses already on their way, then let the radio
+     * thread of the connection end. A new connection starts a new thread.
+     */
+    private void endConnection() {
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onStatus(StatusCode.Disconnected);
+            }
+        }, latencyMs, TimeUnit.MILLISECONDS);
+        radio.shutdown();
+    }
+
+    private int getByteAddress() {
+        return (extended << 17) | (address << 1);
+    }
+
+    private int getCommandLength() {
+        switch (0xFF & pending[0]) {
+            case 0x30: // sync
+            case 0x50: // enter programming mode
+            case 0x51: // leave programming mode
+            case 0x75: // read signature
+                return 2;
+            case 0x41: // get parameter
+                return 3;
+            case 0x55: // load address
+                return 4;
+            case 0x56: // universal
+                return 6;
+            case 0x45: // set device extended, Optiboot reads 5 parameters
+                return 7;
+            case 0x42: // set device
+                return 22;
+            case 0x74: // read page
+                return 5;
+            case 0x64: // program page
+                if (received < 3) {
+                    return 0;
+                }
+                return 5 + (((0xFF & pending[1]) << 8) | (0xFF & pending[2]));
+            default:
+                return 1;
+        }
+    }
+
+    private void respond(byte[] reply) {
+        if (random.nextDouble() < corruptRate) {
+            int at = random.nextInt(reply.length);
+            reply[at] = (byte) (reply[at] ^ (1 + random.nextInt(0xFF)));
+        }
+
+        byte[] kept = new byte[reply.length];
+        int count = 0;
+        for (byte b : reply) {
+            if (dropRate == 0 || random.nextDouble() >= dropRate) {
+                kept[count++] = b;
+            }
+        }
+
+        long due = Math.max(arrival + latencyMs, downFree) + transferTime(count);
+        downFree = due;
+        long delay = Math.max(0, due - System.currentTimeMillis());
+        for (int offset = 0; offset < count; offset += mtu) {
+            final byte[] packet = Arrays.copyOfRange(kept, offset, Math.min(count, offset + mtu));
+            radio.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onContent(packet.length, packet);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return milliseconds for length bytes to cross the link, in whole connection events.
+     */
+    private long transferTime(int length) {
+        if (intervalMs == 0) {
+            return 0;
+        }
+        int packets = (length + mtu - 1) / mtu;
+        return (long) intervalMs * ((packets + packetsPerEvent - 1) / packetsPerEvent);
+    }
+}
@@ -0,0 +1,39 @@
+package com.e_regular_games.arduator.arduino;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UploadMetricsTest {
+    @Test
+    public void roundTrips_bucketByPowersOfTwoMs() {
+        UploadMetrics metrics = new UploadMetrics();
+        metrics.addRoundTrip(UploadMetrics.Command.Program, 500000L); // 0.5ms
+        metrics.addRoundTrip(UploadMetrics.Command.Program, 3000000L); // 3ms
+        metrics.addRoundTrip(UploadMetrics.Command.Program, 3999000L);
+        metrics.addRoundTrip(UploadMetrics.Command.Program, 3600000000000L); // an hour
+
+        UploadMetrics.Histogram program = metrics.getRoundTrips(UploadMetrics.Command.Program);
+        assertEquals(4, program.getCount());
+        assertEquals(1, program.getBucket(0));
+        assertEquals(2, program.getBucket(2));
+        assertEquals(1, program.getBucket(UploadMetrics.Histogram.BUCKETS - 1));
+        assertEquals(500, program.getMin());
+        assertEquals(0, metrics.getRoundTrips(UploadMetrics.Command.ReadPage).getCount());
+    }
+
+    @Test
+    public void toJson_reportsCountersAndPhases() {
+        UploadMetrics metrics = new UploadMetrics();
+        metrics.addBytes(10, 4);
+        metrics.addTimeout();
+        metrics.startPhase(UploadMetrics.Phase.Connect);
+        metrics.startPhase(null);
+
+        String json = metrics.toJson();
+        assertTrue(json, json.startsWith("{\"bytesSent\":10,\"bytesReceived\":4,\"timeouts\":1,"));
+        assertTrue(json, json.contains("\"phasesMs\":{\"connect\":0,\"sync\":0,\"program\":0,\"verify\":0}"));
+        assertTrue(json, json.contains("\"ReadPage\":{\"count\":0,"));
+        assertTrue(json, json.endsWith("}}"));
+    }
+}